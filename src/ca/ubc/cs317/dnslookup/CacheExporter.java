@@ -0,0 +1,111 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/** Writes the contents of a DNS cache to a channel. Records are formatted into a fixed-size page
+ * that is written to the channel whenever it fills up, so the cache is streamed out while it is
+ * being visited instead of being formatted record by record on the standard output. Records can
+ * be written either in the same columns used by the lookup command, or in zone-file format.
+ */
+public class CacheExporter {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final boolean zoneFileFormat;
+    private final ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+    private final StringBuilder line = new StringBuilder();
+    private int count;
+
+    public CacheExporter(WritableByteChannel channel, boolean zoneFileFormat) {
+        this.channel = channel;
+        this.zoneFileFormat = zoneFileFormat;
+    }
+
+    /** Writes all unexpired cached records, optionally restricted to a zone and a record type.
+     *
+     * @param cache DNS cache to be exported.
+     * @param zone  Only records at or below this zone are written, or all records if null.
+     * @param type  Only records of this type are written, or records of all types if null.
+     * @return The number of records written.
+     * @throws IOException if the records could not be written to the channel
+     */
+    public int export(DNSCache cache, DomainName zone, RecordType type) throws IOException {
+        count = 0;
+        try {
+            if (zone == null)
+                cache.forEachNode((node, results) -> writeNode(node, results, type));
+            else
+                cache.forEachNodeInZone(zone, (node, results) -> writeNode(node, results, type));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        flushPage();
+        return count;
+    }
+
+    private void writeNode(DNSNode node, Set<ResourceRecord> results, RecordType type) {
+        if (type != null && node.getType() != type)
+            return;
+        try {
+            for (ResourceRecord record : results) {
+                writeRecord(node, record);
+                count++;
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void writeRecord(DNSNode node, ResourceRecord record) throws IOException {
+        line.setLength(0);
+        if (zoneFileFormat) {
+            line.append(node.getHostName()).append(". ").append(record.getTTL()).append(" IN ")
+                    .append(typeName(record)).append(' ')
+                    .append(RecordCodecs.forCode(record.getTypeCode()).format(record));
+        } else {
+            appendColumn(node.getHostName(), 30);
+            appendColumn(typeName(record), 5);
+            appendColumn(Long.toString(record.getTTL()), 8);
+            line.append(record.getTextResult());
+        }
+        line.append('\n');
+
+        byte[] bytes = line.toString().getBytes(StandardCharsets.ISO_8859_1);
+        if (bytes.length > page.remaining())
+            flushPage();
+        if (bytes.length > page.remaining()) {
+            ByteBuffer large = ByteBuffer.wrap(bytes);
+            while (large.hasRemaining())
+                channel.write(large);
+        } else {
+            page.put(bytes);
+        }
+    }
+
+    /** Returns the mnemonic of the type of a record, or TYPEnnn (RFC 3597) for unknown types. */
+    private static String typeName(ResourceRecord record) {
+        if (record.getType() == RecordType.OTHER)
+            return "TYPE" + record.getTypeCode();
+        return record.getType().toString();
+    }
+
+    private void appendColumn(String value, int width) {
+        line.append(value);
+        for (int i = value.length(); i < width; i++)
+            line.append(' ');
+        line.append(' ');
+    }
+
+    private void flushPage() throws IOException {
+        page.flip();
+        while (page.hasRemaining())
+            channel.write(page);
+        page.clear();
+    }
+}
@@ -1,19 +1,119 @@
 package ca.ubc.cs317.dnslookup;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.function.BiConsumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
  * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * the user. The maps used by the cache are concurrent, so iterating over the cache (e.g., to
+ * dump its contents) is weakly consistent and does not block lookups.
  */
 public class DNSCache {
 
     private static DNSCache instance = new DNSCache();
 
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private Map<DNSNode, Results> cachedResults = new ConcurrentSkipListMap<>();
+    private final ZoneNode zoneIndex = new ZoneNode(DomainName.ROOT);
+    private int nodesSinceSweep = 0;
+    private int sweepInterval = SWEEP_INTERVAL;
+
+    /** Records cached for a query. Its version changes every time a record is added to or
+     * removed from it, and when it is removed from the cache, so copies of the records can be
+     * checked for staleness without looking the query up again.
+     */
+    private static class Results extends ConcurrentHashMap<ResourceRecord, ResourceRecord> {
+        private static final long serialVersionUID = 1L;
+        private static final AtomicLongFieldUpdater<Results> VERSION =
+                AtomicLongFieldUpdater.newUpdater(Results.class, "version");
+
+        private volatile long version;
+
+        private void changed() {
+            VERSION.incrementAndGet(this);
+        }
+    }
+
+    /** A version of the records cached for a query, as returned by getVersion. */
+    public static final class Version {
+        private final Results results;
+        private final long value;
+
+        private Version(Results results) {
+            this.results = results;
+            this.value = results.version;
+        }
+
+        /** Returns true if the records of the query are still the same as when this version was
+         * obtained, apart from records that expired since, or whose expiration was extended.
+         *
+         * @return true if no record of the query was added or removed since this version.
+         */
+        public boolean isCurrent() {
+            return results.version == value;
+        }
+    }
+
+    /** Node of the secondary index of cached queries. The index is a trie of reversed labels
+     * (e.g., com, then example, then www), where each node lists the cached queries for the
+     * name that ends at that node, so a zone can be inspected or flushed without scanning the
+     * whole cache. Each node also keeps the canonical instance of its name, which is built from
+     * the name of its parent, so the index doubles as the table of interned names. Queries are
+     * added to and removed from the index, and index nodes are created and pruned, only while
+     * holding the lock of the root of the index; the maps of a node are only created once needed.
+     */
+    private static class ZoneNode {
+        private final DomainName name;
+        private volatile Map<String, ZoneNode> children;
+        private volatile Set<DNSNode> nodes;
+
+        private ZoneNode(DomainName name) {
+            this.name = name;
+        }
+
+        private ZoneNode getChild(String label) {
+            Map<String, ZoneNode> map = children;
+            return map == null ? null : map.get(label);
+        }
+
+        private Collection<ZoneNode> getChildren() {
+            Map<String, ZoneNode> map = children;
+            return map == null ? Collections.emptyList() : map.values();
+        }
+
+        private Set<DNSNode> getNodes() {
+            Set<DNSNode> set = nodes;
+            return set == null ? Collections.emptySet() : set;
+        }
+
+        private boolean isEmpty() {
+            return getNodes().isEmpty() && getChildren().isEmpty();
+        }
+
+        private ZoneNode addChild(String label) {
+            if (children == null)
+                children = new ConcurrentSkipListMap<>();
+            ZoneNode child = children.get(label);
+            if (child == null) {
+                child = new ZoneNode(name.getChild(label));
+                children.put(child.name.getLabel(0), child);
+            }
+            return child;
+        }
+
+        private void addNode(DNSNode node) {
+            if (nodes == null)
+                nodes = new ConcurrentSkipListSet<>();
+            nodes.add(node);
+        }
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -33,14 +133,36 @@ public class DNSCache {
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        Results results = cachedResults.get(node);
         if (results == null)
             return Collections.emptySet();
 
-        results.keySet().removeIf(record -> !record.isStillValid());
+        if (removeExpired(node, results))
+            return Collections.emptySet();
         return Collections.unmodifiableSet(results.keySet());
     }
 
+    /** Removes the expired records of a query. If no record is left, the query itself is removed
+     * from the cache and its index, so its names are no longer kept by the cache.
+     *
+     * @param node    DNS query whose records are checked.
+     * @param results Map of records of the query.
+     * @return true if no record of the query is left.
+     */
+    private boolean removeExpired(DNSNode node, Results results) {
+        if (results.keySet().removeIf(record -> !record.isStillValid()))
+            results.changed();
+        if (!results.isEmpty())
+            return false;
+        synchronized (zoneIndex) {
+            if (results.isEmpty() && cachedResults.remove(node, results)) {
+                results.changed();
+                removeFromIndex(node);
+            }
+        }
+        return true;
+    }
+
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
      * resource record, the existing record is replaced if the new one expires after the existing
      * record, otherwise the existing record is maintained.
@@ -52,15 +174,233 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        DNSNode node = record.getNode();
+        Results results;
+        do {
+            results = cachedResults.get(node);
+            if (results == null)
+                results = addNode(node);
+
+            ResourceRecord oldRecord = results.get(record);
+            if (oldRecord == null || oldRecord.expiresBefore(record)) {
+                results.put(record, record);
+                // extending the expiration of a record (e.g., glue repeated by every referral)
+                // leaves copies of the results accurate, if conservative
+                if (oldRecord == null)
+                    results.changed();
+            }
+            // if the query was removed as empty before the record was added, add it again
+        } while (cachedResults.get(node) != results);
+    }
+
+    /** Adds a query to the cache and its index, with no records yet. Once as many queries have
+     * been added as the cache held after the previous sweep (and at least SWEEP_INTERVAL), the
+     * cache is swept, removing the queries whose records have all expired, so a query that is
+     * never looked up again does not stay in the cache forever. The cost of a sweep is thus
+     * spread over the queries added since the previous one.
+     *
+     * @param node DNS query to be added.
+     * @return The map of records of the query.
+     */
+    private Results addNode(DNSNode node) {
+        Results results;
+        boolean sweep = false;
+        synchronized (zoneIndex) {
+            results = cachedResults.get(node);
+            if (results == null) {
+                results = new Results();
+                findZone(node.getDomainName(), true).addNode(node);
+                cachedResults.put(node, results);
+                sweep = ++nodesSinceSweep >= sweepInterval;
+                if (sweep) nodesSinceSweep = 0;
+            }
+        }
+        if (sweep) {
+            int[] remaining = new int[1];
+            forEachNode((cachedNode, cachedRecords) -> remaining[0]++);
+            synchronized (zoneIndex) {
+                sweepInterval = Math.max(SWEEP_INTERVAL, remaining[0]);
+                // names interned by records that are gone, but never cached themselves
+                pruneEmpty(zoneIndex);
+            }
+        }
+        return results;
+    }
+
+    /** Returns the current version of the records cached for a query. Copies of the records
+     * taken after obtaining the version are still accurate, apart from expired records, as long as
+     * the version is current. Only this query is tracked, so changes to other queries, or flushes
+     * of zones that do not contain it, leave the version current.
+     *
+     * @param node DNS query (host name and record type) whose records are tracked.
+     * @return The version of the records of the query, or null if the query is not cached.
+     */
+    public Version getVersion(DNSNode node) {
+        Results results = cachedResults.get(node);
+        return results == null ? null : new Version(results);
+    }
+
+    /** Returns the index node for a domain name, optionally creating it and any missing node on
+     * the path from the root. Nodes may only be created while holding the lock of the index.
+     *
+     * @param name   Domain name to be searched in the index.
+     * @param create If true, missing index nodes are created.
+     * @return The index node for the domain name, or null if it does not exist and create is false.
+     */
+    private ZoneNode findZone(DomainName name, boolean create) {
+        ZoneNode zone = zoneIndex;
+        for (int i = name.getLabelCount() - 1; i >= 0 && zone != null; i--) {
+            if (create)
+                zone = zone.addChild(name.getLabel(i));
+            else
+                zone = zone.getChild(name.getLabel(i));
+        }
+        return zone;
+    }
+
+    /** Returns the deepest zone enclosing a domain name (including the name itself) for which
+     * unexpired NS records are cached. This is the closest known delegation point from which a
+     * search for the name can start.
+     *
+     * @param name Domain name to be searched.
+     * @return The closest enclosing zone with cached NS records, or null if there is none.
+     */
+    public DomainName getClosestEnclosingZone(DomainName name) {
+        DomainName closest = null;
+        ZoneNode zone = zoneIndex;
+        for (int i = name.getLabelCount(); zone != null; i--) {
+            for (DNSNode node : zone.getNodes())
+                if (node.getType() == RecordType.NS && !getCachedResults(node).isEmpty())
+                    closest = node.getDomainName();
+            zone = i > 0 ? zone.getChild(name.getLabel(i - 1)) : null;
+        }
+        return closest;
+    }
+
+    /** Perform a specific action for each query at or below a zone and its set of cached records.
+     * Only the part of the cache inside the zone is visited. Expired records are removed before
+     * the action is performed.
+     *
+     * @param zone     Domain name of the zone to be visited.
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNodeInZone(DomainName zone, BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        ZoneNode start = findZone(zone, false);
+        if (start != null)
+            forEachNodeInZone(start, consumer);
+    }
+
+    private void forEachNodeInZone(ZoneNode zone, BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        for (DNSNode node : zone.getNodes()) {
+            Set<ResourceRecord> results = getCachedResults(node);
+            if (!results.isEmpty())
+                consumer.accept(node, results);
+        }
+        for (ZoneNode child : zone.getChildren())
+            forEachNodeInZone(child, consumer);
+    }
+
+    /** Removes all cached results at or below a zone, regardless of their TTL.
+     *
+     * @param zone Domain name of the zone to be flushed. Flushing the root clears the whole cache.
+     * @return The number of queries whose results were removed.
+     */
+    public int flush(DomainName zone) {
+        synchronized (zoneIndex) {
+            return flushLocked(zone);
+        }
+    }
+
+    private int flushLocked(DomainName zone) {
+        ZoneNode parent = zoneIndex;
+        for (int i = zone.getLabelCount() - 1; i > 0 && parent != null; i--)
+            parent = parent.getChild(zone.getLabel(i));
+        if (parent == null)
+            return 0;
+
+        ZoneNode removed;
+        if (zone.getLabelCount() == 0) {
+            removed = new ZoneNode(DomainName.ROOT);
+            removed.children = zoneIndex.children;
+            removed.nodes = zoneIndex.nodes;
+            zoneIndex.children = null;
+            zoneIndex.nodes = null;
+        } else {
+            removed = parent.getChild(zone.getLabel(0));
+            if (removed == null)
+                return 0;
+            parent.children.remove(zone.getLabel(0));
+            pruneIndex(zone.getParent());
         }
+        return removeIndexed(removed);
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Removes a query from the index, along with the index nodes left without any query. Must
+     * be called while holding the lock of the index.
+     */
+    private void removeFromIndex(DNSNode node) {
+        ZoneNode zone = findZone(node.getDomainName(), false);
+        if (zone != null && zone.getNodes().remove(node))
+            pruneIndex(node.getDomainName());
+    }
+
+    /** Removes the index node of a name, and then of each of its ancestors, while they have
+     * neither queries nor children. Must be called while holding the lock of the index.
+     */
+    private void pruneIndex(DomainName name) {
+        for (; name != null && name.getLabelCount() > 0; name = name.getParent()) {
+            ZoneNode parent = findZone(name.getParent(), false);
+            ZoneNode zone = parent == null ? null : parent.getChild(name.getLabel(0));
+            if (zone == null || !zone.isEmpty())
+                return;
+            parent.children.remove(name.getLabel(0));
+        }
+    }
+
+    /** Removes every index node below a node that has neither queries nor children left. Must be
+     * called while holding the lock of the index.
+     */
+    private void pruneEmpty(ZoneNode zone) {
+        for (ZoneNode child : zone.getChildren()) {
+            pruneEmpty(child);
+            if (child.isEmpty())
+                zone.children.remove(child.name.getLabel(0));
+        }
+    }
+
+    private int removeIndexed(ZoneNode zone) {
+        int count = 0;
+        for (DNSNode node : zone.getNodes()) {
+            Results results = cachedResults.remove(node);
+            if (results != null) {
+                results.changed();
+                count++;
+            }
+        }
+        for (ZoneNode child : zone.getChildren())
+            count += removeIndexed(child);
+        return count;
+    }
+
+    /** Returns the canonical instance of a domain name, kept by the node of the name in the
+     * index of the cache. Names obtained through this method are stored only once, and share
+     * their suffixes (e.g., the labels "example" and "com" of every name under example.com) with
+     * the other interned names of the same zones, so records that repeat the same names do not
+     * each keep their own copy. Interned names can be compared by reference for as long as they
+     * are in the index: a name is forgotten once no query at or below it is cached (e.g., after
+     * its records expire or are flushed), and interning it again returns a new instance.
+     *
+     * @param name Domain name to be interned.
+     * @return The interned instance equal to the specified name.
+     */
+    public DomainName intern(DomainName name) {
+        ZoneNode zone = findZone(name, false);
+        if (zone == null) {
+            synchronized (zoneIndex) {
+                zone = findZone(name, true);
+            }
+        }
+        return zone.name;
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
@@ -70,9 +410,8 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
+        for (Map.Entry<DNSNode, Results> entry : cachedResults.entrySet()) {
+            if (!removeExpired(entry.getKey(), entry.getValue()))
                 consumer.accept(entry.getKey(), entry.getValue().keySet());
         }
     }
@@ -84,9 +423,9 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        for (Map.Entry<DNSNode, Results> entry : cachedResults.entrySet()) {
+            if (!removeExpired(entry.getKey(), entry.getValue()))
+                entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
         }
     }
 
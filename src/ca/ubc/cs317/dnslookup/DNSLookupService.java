@@ -4,9 +4,13 @@ import javax.swing.text.rtf.RTFEditorKit;
 import java.io.Console;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 public class DNSLookupService {
@@ -15,6 +19,7 @@ public class DNSLookupService {
     private static final int MAX_INDIRECTION_LEVEL = 10;
     private static InetAddress rootServer;
     private static DNSCache cache = DNSCache.getInstance();
+    private static LocalResultCache localCache = new LocalResultCache(256);
     private static RecordType currentType;
     private static boolean querySuccess = true;
     private static int previousQueryID = -1;
@@ -26,12 +31,25 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length == 2 && args[1].equals("-p1")) {
-            p1Flag = true;
-        } else if (args.length != 1) {
+        String recordFile = null;
+        String replayFile = null;
+        boolean validCall = args.length >= 1;
+        for (int i = 1; i < args.length && validCall; i++) {
+            if (args[i].equals("-p1"))
+                p1Flag = true;
+            else if (args[i].equals("-record") && i + 1 < args.length)
+                recordFile = args[++i];
+            else if (args[i].equals("-replay") && i + 1 < args.length)
+                replayFile = args[++i];
+            else
+                validCall = false;
+        }
+        if (!validCall) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [-record corpus | -replay corpus]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("-record saves every response received into corpus, and -replay serves responses from a");
+            System.err.println("corpus saved that way instead of using the network.");
             System.exit(1);
         }
 
@@ -43,10 +61,11 @@ public class DNSLookupService {
             System.exit(1);
         }
 
+        // the socket (or corpus) is only opened when the first query is sent
         try {
-            DNSQueryHandler.openSocket();
-        } catch (SocketException ex) {
-            ex.printStackTrace();
+            DNSQueryHandler.configureTransport(recordFile, replayFile);
+        } catch (IOException e) {
+            System.err.println("Invalid corpus (" + e.getMessage() + ").");
             System.exit(1);
         }
 
@@ -91,7 +110,7 @@ public class DNSLookupService {
                     System.out.println("Invalid call. Format:\n\tserver IP");
                 }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
-                // TRACE: Turn trace setting on or off
+                // TRACE: Turn trace setting on or off, or change its format, output or sampling
                 if (commandArgs.length == 2) {
                     boolean verboseTracing = false;
                     if (commandArgs[1].equalsIgnoreCase("on")) {
@@ -106,45 +125,173 @@ public class DNSLookupService {
                         continue;
                     }
                     System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("format") &&
+                        (commandArgs[2].equalsIgnoreCase("text") || commandArgs[2].equalsIgnoreCase("json"))) {
+                    TraceLog.setJson(commandArgs[2].equalsIgnoreCase("json"));
+                    System.out.println("Trace format is now: " + commandArgs[2].toUpperCase());
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("output")) {
+                    boolean toStdout = commandArgs[2].equalsIgnoreCase("stdout");
+                    try {
+                        TraceLog.setOutput(toStdout ? null : commandArgs[2]);
+                        System.out.println("Trace output is now: " + commandArgs[2]);
+                    } catch (IOException e) {
+                        System.err.println("Invalid trace output (" + e.getMessage() + ").");
+                    }
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("sample")) {
+                    try {
+                        TraceLog.setSampleRate(Integer.parseInt(commandArgs[2]));
+                        System.out.println("Tracing one lookup out of every " + commandArgs[2]);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Invalid call. Format:\n\ttrace sample N (N >= 1)");
+                    }
                 } else {
                     System.err.println("Invalid call. Format:\n\ttrace on|off");
+                    System.err.println("\ttrace format text|json\n\ttrace output stdout|file\n\ttrace sample N");
                 }
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
-                RecordType type;
+                List<RecordType> types = new ArrayList<>();
                 if (commandArgs.length == 2)
-                    type = RecordType.A;
-                else if (commandArgs.length == 3)
+                    types.add(RecordType.A);
+                else if (commandArgs.length >= 3)
                     try {
-                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                        for (int i = 2; i < commandArgs.length; i++)
+                            for (String typeName : commandArgs[i].split(","))
+                                if (!typeName.isEmpty())
+                                    types.add(RecordType.valueOf(typeName.toUpperCase()));
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, SOA, TXT, SRV, PTR");
                         continue;
                     }
                 else {
-                    System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
+                    System.err.println("Invalid call. Format:\n\tlookup hostName [type ...]");
                     continue;
                 }
-                findAndPrintResults(commandArgs[1], type);
+                try {
+                    DNSQueryHandler.openConfiguredTransport();
+                } catch (IOException ex) {
+                    System.err.println("Could not open transport (" + ex.getMessage() + ").");
+                    continue;
+                }
+                if (types.size() == 1)
+                    findAndPrintResults(commandArgs[1], types.get(0));
+                else
+                    findAndPrintResults(commandArgs[1], types);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                // DUMP: Print all results still cached, optionally only for a zone and type
+                if (commandArgs.length > 3) {
+                    System.err.println("Invalid call. Format:\n\tdump [zone] [type]");
+                    continue;
+                }
+                try {
+                    exportCache(Channels.newChannel(System.out), false, commandArgs, 1);
+                    System.out.flush();
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, SOA, TXT, SRV, PTR");
+                } catch (IOException ex) {
+                    System.err.println("Could not dump cache (" + ex.getMessage() + ").");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("export")) {
+                // EXPORT: Write all results still cached to a file in zone-file format
+                if (commandArgs.length < 2 || commandArgs.length > 4) {
+                    System.err.println("Invalid call. Format:\n\texport file [zone] [type]");
+                    continue;
+                }
+                try (FileChannel channel = FileChannel.open(Paths.get(commandArgs[1]),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    int count = exportCache(channel, true, commandArgs, 2);
+                    System.out.println("Exported " + count + " records to " + commandArgs[1]);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, SOA, TXT, SRV, PTR");
+                } catch (IOException ex) {
+                    System.err.println("Could not export cache (" + ex.getMessage() + ").");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("flush")) {
+                // FLUSH: Remove all cached results at or below a zone
+                if (commandArgs.length == 2) {
+                    int removed = cache.flush(DomainName.of(commandArgs[1]));
+                    System.out.println("Flushed " + removed + " cached queries under " + commandArgs[1]);
+                } else {
+                    System.err.println("Invalid call. Format:\n\tflush zone");
+                }
             } else {
                 System.err.println("Invalid command. Valid commands are:");
-                System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tlookup fqdn [type ...]");
                 System.err.println("\ttrace on|off");
+                System.err.println("\ttrace format text|json");
+                System.err.println("\ttrace output stdout|file");
+                System.err.println("\ttrace sample N");
                 System.err.println("\tserver IP");
-                System.err.println("\tdump");
+                System.err.println("\tdump [zone] [type]");
+                System.err.println("\texport file [zone] [type]");
+                System.err.println("\tflush zone");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
         DNSQueryHandler.closeSocket();
+        TraceLog.flush();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Sets the root server used as the starting point of searches.
+     *
+     * @param server Address of the root DNS server.
+     */
+    static void setRootServer(InetAddress server) {
+        rootServer = server;
+    }
+
+    /**
+     * Finds all the results for a specific node, as the lookup command does, without printing
+     * them. Used to drive the resolver from other tools, such as WorkloadReplay.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the query.
+     */
+    static Set<ResourceRecord> resolve(DNSNode node) {
+        TraceLog.startLookup();
+        return getResults(node, 0);
+    }
+
+    /**
+     * Finds all the results for several record types of a host name, as the lookup command does
+     * when given several types, without printing them.
+     *
+     * @param name  Host name to be used for search.
+     * @param types Record types to be used for search.
+     * @return A map linking each record type, in the order requested, to its set of results.
+     */
+    static Map<RecordType, Set<ResourceRecord>> resolve(DomainName name, List<RecordType> types) {
+        TraceLog.startLookup();
+        return getResults(name, types);
+    }
+
+    /**
+     * Streams the cached results to a channel, optionally restricted to the zone and record type
+     * specified in the command arguments.
+     *
+     * @param channel        Channel to which the results are written.
+     * @param zoneFileFormat If true, results are written in zone-file format, otherwise they are
+     *                       written in the same format used by lookup.
+     * @param commandArgs    Arguments of the command.
+     * @param first          Position of the optional zone argument in commandArgs, followed by the
+     *                       optional record type.
+     * @return The number of records written.
+     * @throws IOException if the results could not be written to the channel
+     */
+    private static int exportCache(WritableByteChannel channel, boolean zoneFileFormat,
+                                   String[] commandArgs, int first) throws IOException {
+        DomainName zone = commandArgs.length > first ? DomainName.of(commandArgs[first]) : null;
+        RecordType type = commandArgs.length > first + 1 ?
+                RecordType.valueOf(commandArgs[first + 1].toUpperCase()) : null;
+        return new CacheExporter(channel, zoneFileFormat).export(cache, zone, type);
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -154,9 +301,66 @@ public class DNSLookupService {
     private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
         currentType = type;
+        TraceLog.startLookup();
         printResults(node, getResults(node, 0));
     }
 
+    /**
+     * Finds all results for a host name and several record types and prints them on the standard
+     * output, in the order of the types.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param types    Record types for search.
+     */
+    private static void findAndPrintResults(String hostName, List<RecordType> types) {
+        DomainName name = DomainName.of(hostName);
+        TraceLog.startLookup();
+        for (Map.Entry<RecordType, Set<ResourceRecord>> entry : getResults(name, types).entrySet())
+            printResults(new DNSNode(name, entry.getKey()), entry.getValue());
+    }
+
+    /**
+     * Finds all the results for several record types of the same host name. The delegation chain
+     * is only walked once, for the first type that is not already cached. The queries for the
+     * remaining types are then sent together to the name server found for the host's zone, and
+     * each type is cached independently. Types that this final hop does not answer (e.g., because
+     * the server returns a referral) are resolved individually.
+     *
+     * @param name  Host name to be used for search.
+     * @param types Record types to be used for search.
+     * @return A map linking each record type, in the order requested, to its set of results.
+     */
+    private static Map<RecordType, Set<ResourceRecord>> getResults(DomainName name, List<RecordType> types) {
+        Map<RecordType, Set<ResourceRecord>> results = new LinkedHashMap<>();
+        List<DNSNode> pending = new ArrayList<>();
+        for (RecordType type : types) {
+            DNSNode node = new DNSNode(name, type);
+            results.put(type, getCachedResults(node));
+            if (results.get(type).isEmpty() && !pending.contains(node))
+                pending.add(node);
+        }
+
+        if (pending.size() > 1 && !p1Flag) {
+            DNSNode first = pending.remove(0);
+            results.put(first.getType(), getResults(first, 0));
+
+            InetAddress server = findCachedServer(name);
+            boolean aliased = !getCachedResults(new DNSNode(name, RecordType.CNAME)).isEmpty();
+            if (!aliased && server != null) {
+                List<DNSNode> finalHop = pending.subList(0, Math.min(pending.size(), DNSQueryHandler.getMaxBatchSize()));
+                try {
+                    for (DNSServerResponse response : DNSQueryHandler.sendQueryBatch(server, finalHop).values())
+                        DNSQueryHandler.decodeAndCacheResponse(response.getTransactionID(),
+                                response.getResponse(), cache);
+                } catch (IOException ignored) {}
+            }
+        }
+
+        for (DNSNode node : pending)
+            results.put(node.getType(), getResults(node, 0));
+        return results;
+    }
+
     /**
      * Finds all the results for a specific node.
      *
@@ -180,35 +384,97 @@ public class DNSLookupService {
             return Collections.emptySet();
         }
 //        System.out.println("TEST +++++  2  +++++ TEST");
-        if (cache.getCachedResults(node).isEmpty()) {
-            retrieveResultsFromServer(node, rootServer);
+        DNSNode cNameNode = new DNSNode(node.getDomainName(), RecordType.CNAME);
+        // an alias already known to this thread means there are no direct results to look for
+        Set<ResourceRecord> cNameResults = localCache.get(cNameNode);
+        Set<ResourceRecord> cachedResults = cNameResults != null ? Collections.emptySet() : getCachedResults(node);
+        if (!cachedResults.isEmpty()) {
+            TraceLog.cacheHit(node, cachedResults.size());
+            return cachedResults;
+        }
+
+        if (cNameResults == null)
+            cNameResults = getCachedResults(cNameNode);
+        if (cNameResults.isEmpty()) {
+            // start from the closest delegation already known, not necessarily the root
+            retrieveResultsFromServer(node, findClosestServer(node.getDomainName()));
 //            System.out.println("TEST +++++  3  +++++ TEST");
-            if (!cache.getCachedResults(node).isEmpty()) {
-            } else {
-                // check for CNAME
-                DNSNode cNameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
-                List<ResourceRecord> cNameResults = new ArrayList<ResourceRecord>(cache.getCachedResults(cNameNode));
-//                System.out.println("TEST +++++  4  +++++ TEST");
-                if (!cNameResults.isEmpty()) {
-                    Set<ResourceRecord> allResults = new HashSet<ResourceRecord>();
-                    for (ResourceRecord cnameRecord : cache.getCachedResults(cNameNode)){
-                        DNSNode newNewNode = new DNSNode(cnameRecord.getTextResult(), node.getType());
-                        allResults.addAll(getResults(newNewNode, indirectionLevel + 1));
-                    }
-                    return allResults;
-                } else {
-                    if (rootServer != null) {
-                        Set<ResourceRecord> nameServer = retrieveResultsFromServer(node, rootServer);
-                        // update cache results
-                        Set<ResourceRecord> cachedResults = cache.getCachedResults(node);
-                        if (!cachedResults.isEmpty()){
-                            return cachedResults;
-                        }
-                    }
-                }
+            if (getCachedResults(node).isEmpty() && getCachedResults(cNameNode).isEmpty()
+                    && rootServer != null) {
+                retrieveResultsFromServer(node, rootServer);
+            }
+            cachedResults = getCachedResults(node);
+            if (!cachedResults.isEmpty()) {
+                return cachedResults;
             }
+            cNameResults = getCachedResults(cNameNode);
         }
-        return cache.getCachedResults(node);
+        if (node.getType() == RecordType.CNAME) {
+            return cNameResults;
+        }
+
+        // check for CNAME; targets already harvested from a response are served from the cache
+//        System.out.println("TEST +++++  4  +++++ TEST");
+        Set<ResourceRecord> allResults = new HashSet<ResourceRecord>();
+        for (ResourceRecord cnameRecord : cNameResults) {
+            DNSNode newNewNode = new DNSNode(cnameRecord.getNameResult(), node.getType());
+            allResults.addAll(getResults(newNewNode, indirectionLevel + 1));
+        }
+        return allResults;
+    }
+
+    /**
+     * Returns the cached results for a node, from the cache of the current thread if it has them,
+     * or from the shared cache otherwise, in which case non-empty results are also kept in the
+     * cache of the current thread.
+     *
+     * @param node Host name and record type of the query.
+     * @return A potentially empty set of results associated to the query.
+     */
+    private static Set<ResourceRecord> getCachedResults(DNSNode node) {
+        Set<ResourceRecord> results = localCache.get(node);
+        if (results != null)
+            return results;
+        DNSCache.Version version = cache.getVersion(node);
+        results = cache.getCachedResults(node);
+        if (!results.isEmpty() && version != null)
+            localCache.put(node, results, version);
+        return results;
+    }
+
+    /**
+     * Finds the address of a name server for the closest zone enclosing a name whose delegation
+     * is already cached, so a search for the name can skip the levels above that zone.
+     *
+     * @param name Domain name to be searched.
+     * @return The address of a name server for the closest known enclosing zone, or the root
+     * server if no such name server address is cached.
+     */
+    private static InetAddress findClosestServer(DomainName name) {
+        InetAddress server = findCachedServer(name);
+        return server != null ? server : rootServer;
+    }
+
+    /**
+     * Finds the address of a name server for the closest zone enclosing a name whose delegation
+     * is already cached.
+     *
+     * @param name Domain name to be searched.
+     * @return The address of a name server for the closest known enclosing zone, or null if no
+     * such name server address is cached.
+     */
+    private static InetAddress findCachedServer(DomainName name) {
+        DomainName zone = cache.getClosestEnclosingZone(name);
+        while (zone != null) {
+            for (ResourceRecord nsRecord : cache.getCachedResults(new DNSNode(zone, RecordType.NS))) {
+                InetAddress address = findNameServerAddress(nsRecord.getNameResult());
+                if (address != null)
+                    return address;
+            }
+            DomainName parent = zone.getParent();
+            zone = parent == null ? null : cache.getClosestEnclosingZone(parent);
+        }
+        return null;
     }
 
     /**
@@ -281,7 +547,7 @@ public class DNSLookupService {
         }
 //        System.out.println("TEST ~~~~~  3  ~~~~~ TEST");
         for (ResourceRecord rr : nsArr) {
-            String nsName = rr.getTextResult();
+            DomainName nsName = rr.getNameResult();
             InetAddress address = findNameServerAddress(nsName);
             if (address == null) {
 //                System.out.println("TEST ~~~~~  4  ~~~~~ TEST");
@@ -289,6 +555,7 @@ public class DNSLookupService {
             } else {
 //                System.out.println("TEST ~~~~~  5  ~~~~~ TEST");
                 foundNSAddress = true;
+                TraceLog.referral(node, nsName, address);
                 retrieveResultsFromServer(node, address);
                 break;
             }
@@ -296,9 +563,9 @@ public class DNSLookupService {
 //        System.out.println("TEST ~~~~~  6  ~~~~~ TEST");
         if (!foundNSAddress) {
             ResourceRecord firstNsRecord = nsArr.get(0);
-            String nsName = firstNsRecord.getTextResult();
+            DomainName nsName = firstNsRecord.getNameResult();
             DNSNode nsNode = new DNSNode(nsName, RecordType.A);
-            retrieveResultsFromServer(nsNode, rootServer);
+            retrieveResultsFromServer(nsNode, findClosestServer(nsName));
             InetAddress address = findNameServerAddress(nsName);
             if (address == null) {
 //                System.out.println("TEST ~~~~~  7  ~~~~~ TEST");
@@ -306,13 +573,14 @@ public class DNSLookupService {
             } else {
 //                System.out.println("TEST ~~~~~  8  ~~~~~ TEST");
                 foundNSAddress = true;
+                TraceLog.referral(node, nsName, address);
                 retrieveResultsFromServer(node, address);
                 return;
             }
         }
     }
 
-    private static InetAddress findNameServerAddress(String nsName) {
+    private static InetAddress findNameServerAddress(DomainName nsName) {
         DNSNode ipv4Node = new DNSNode(nsName, RecordType.A);
         List<ResourceRecord> matches = new ArrayList<ResourceRecord>(cache.getCachedResults(ipv4Node));
         if (!matches.isEmpty()) {
@@ -329,6 +597,9 @@ public class DNSLookupService {
      * @param results Set of results to be printed for the node.
      */
     private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+        // only wait for the writer if there is a trace to keep apart from the results
+        if (TraceLog.isEnabled() || TraceLog.hasPending())
+            TraceLog.flush();
         if (results.isEmpty())
             System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), -1, "0.0.0.0");
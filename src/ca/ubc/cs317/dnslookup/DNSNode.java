@@ -4,20 +4,28 @@ import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name (ignoring case) and type are considered equal.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
-    private String hostName;
+    private DomainName name;
     private RecordType type;
 
     public DNSNode(String hostName, RecordType type) {
-        this.hostName = hostName;
+        this(DomainName.of(hostName), type);
+    }
+
+    public DNSNode(DomainName name, RecordType type) {
+        this.name = name;
         this.type = type;
     }
 
     public String getHostName() {
-        return hostName;
+        return name.toString();
+    }
+
+    public DomainName getDomainName() {
+        return name;
     }
 
     public RecordType getType() {
@@ -31,26 +39,27 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
+        if (!name.equals(dnsNode.name)) return false;
         return type == dnsNode.type;
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
+        int result = name.hashCode();
         result = 31 * result + type.hashCode();
         return result;
     }
 
     @Override
     public String toString() {
-        return hostName + " (" + type + ")";
+        return name + " (" + type + ")";
     }
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        int result = name.compareTo(o.name);
+        if (result != 0)
+            return result;
         else
             return type.compareTo(o.type);
     }
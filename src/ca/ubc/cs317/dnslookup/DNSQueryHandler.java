@@ -3,50 +3,143 @@ package ca.ubc.cs317.dnslookup;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Random;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
 
 public class DNSQueryHandler {
 
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static DatagramSocket socket;
-    private static boolean verboseTracing = false;
+    public static final int MAX_BATCH_SIZE = 16;
+    private static final int MAX_COMPRESSION_POINTERS = 64;
+    private static DNSTransport transport;
+    private static String recordFile;
+    private static String replayFile;
     private static final boolean isTesting = false; //TODO: CHANGE WHEN SUBMIT
-    private static int[] generatedQueryID = new int[65536];
-    private static int totalQuery = 0;
+    private static long sentQueries = 0;
     private static int decodingIndex = 0;
     public static Set<ResourceRecord> answers;
     public static Set<ResourceRecord> nameServers;
     public static Set<ResourceRecord> additional;
 
-
-    private static final Random random = new Random();
+    private static UpstreamLimiter limiter = new UpstreamLimiter(100);
 
     /**
      * Sets up the socket and set the timeout to 5 seconds
      *
-     * @throws SocketException if the socket could not be opened, or if there was an
-     *                         error with the underlying protocol
+     * @throws IOException if the socket could not be opened, or if there was an
+     *                     error with the underlying protocol
      */
-    public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
+    public static void openSocket() throws IOException {
+        transport = new UDPTransport();
     }
 
     /**
-     * Closes the socket
+     * Sets up the transport used to exchange messages with the servers. Responses are either
+     * served from a recorded corpus without using the network, or received over UDP and,
+     * optionally, recorded into a corpus.
+     *
+     * @param recordFile Path of the corpus where responses are recorded, or null.
+     * @param replayFile Path of the corpus from which responses are served, or null to use UDP.
+     * @throws IOException if the socket could not be opened or the corpus could not be read or created
+     */
+    public static void openTransport(String recordFile, String replayFile) throws IOException {
+        if (replayFile != null) {
+            transport = new ReplayTransport(replayFile);
+        } else if (recordFile != null) {
+            DNSTransport socket = new UDPTransport();
+            try {
+                transport = new RecordingTransport(socket, recordFile);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        } else {
+            openSocket();
+        }
+    }
+
+    /**
+     * Selects the transport used to exchange messages with the servers, as in openTransport, but
+     * does not open it until the first query is sent, so that programs that never send a query
+     * (or send it late) do not pay for opening the socket or loading a corpus at startup. The
+     * corpus paths are checked right away, so a wrong path is reported before any query is made.
+     *
+     * @param record Path of the corpus where responses are recorded, or null.
+     * @param replay Path of the corpus from which responses are served, or null to use UDP.
+     * @throws IOException if the corpus to replay cannot be read, or the corpus to record cannot be written
+     */
+    public static void configureTransport(String record, String replay) throws IOException {
+        if (replay != null) {
+            Path path = Paths.get(replay);
+            if (!Files.isRegularFile(path) || !Files.isReadable(path))
+                throw new IOException("Cannot read corpus " + replay);
+        } else if (record != null) {
+            Path path = Paths.get(record).toAbsolutePath();
+            boolean writable = Files.exists(path) ?
+                    Files.isRegularFile(path) && Files.isWritable(path) :
+                    Files.isDirectory(path.getParent()) && Files.isWritable(path.getParent());
+            if (!writable)
+                throw new IOException("Cannot write corpus " + record);
+        }
+        recordFile = record;
+        replayFile = replay;
+        transport = null;
+    }
+
+    /**
+     * Opens the transport selected by configureTransport, if it is not open yet.
+     *
+     * @throws IOException if the socket could not be opened or the corpus could not be read or created
+     */
+    public static void openConfiguredTransport() throws IOException {
+        if (transport == null)
+            openTransport(recordFile, replayFile);
+    }
+
+    /**
+     * Returns the transport in use, opening the configured transport if none is open yet.
+     */
+    private static DNSTransport getTransport() throws IOException {
+        openConfiguredTransport();
+        return transport;
+    }
+
+    /**
+     * Replaces the transport used to exchange messages with the servers
+     */
+    public static void setTransport(DNSTransport newTransport) {
+        transport = newTransport;
+    }
+
+    /**
+     * Closes the socket, or whichever transport is in use
      */
     public static void closeSocket() {
-        socket.close();
+        if (transport != null)
+            transport.close();
     }
 
     /**
-     * Set verboseTracing to tracing
+     * Turns the trace of queries and responses on or off
      */
     public static void setVerboseTracing(boolean tracing) {
-        verboseTracing = tracing;
+        TraceLog.setEnabled(tracing);
+    }
+
+    /**
+     * Set the limiter used to bound the rate and number of outstanding queries to each server
+     */
+    public static void setLimiter(UpstreamLimiter upstreamLimiter) {
+        limiter = upstreamLimiter;
+    }
+
+    /**
+     * Returns the largest number of queries that can be sent together by sendQueryBatch
+     */
+    public static int getMaxBatchSize() {
+        return Math.min(MAX_BATCH_SIZE, limiter.getMaxOutstandingPerServer());
     }
 
     /**
@@ -66,32 +159,7 @@ public class DNSQueryHandler {
 //        }
 
 
-        message[0] = (byte) (queryID >>> 8);
-        message[1] = (byte) (queryID & 0xff);
-        message[5] = (byte) (1);
-        String[] serverNames = node.getHostName().split("[.]");
-        int index = 12;
-//        if (isTesting) {
-//            System.out.println("SOUT大法好2");
-//            System.out.println(queryID);
-//            System.out.println(queryID >> 8);
-//            System.out.println(queryID & 0xff);
-//        }
-        for (String serverName : serverNames) {
-            message[index++] = (byte) serverName.length();
-            for (int j = 0; j < serverName.length(); j++) {
-                message[index++] = (byte) ((int) serverName.charAt(j));
-            }
-        }
-//        if (isTesting) {
-//            System.out.println("SOUT大法好3");
-//            System.out.println(Arrays.toString(message));
-//        }
-        message[index++] = (byte) 0;
-        message[index++] = (byte) ((node.getType().getCode() >>> 8) & 0xff);
-        message[index++] = (byte) (node.getType().getCode() & 0xff);
-        message[index++] = (byte) 0;
-        message[index++] = (byte) 1;
+        int index = encodeQuery(message, node, queryID);
 
         int timeOutCount = 0;
         int maxTimeOut = 2;
@@ -100,39 +168,124 @@ public class DNSQueryHandler {
 //            System.out.println("SOUT大法好4");
 //            System.out.println(Arrays.toString(message));
 //        }
-        while (timeOutCount < maxTimeOut) {
-            if (verboseTracing) {
-                System.out.println("\n");
-                verbosePrint(queryID, node, server);
-            }
-            DatagramPacket dp = new DatagramPacket(message, index + 1, server, DEFAULT_DNS_PORT);
-            try {
-                socket.send(dp);
-            } catch (IOException e) {
-                break;
-            }
+        limiter.acquire(server, 1);
+        try {
+            while (timeOutCount < maxTimeOut) {
+                limiter.awaitTokens(server, 1);
+                TraceLog.querySent(queryID, node, server);
+                try {
+                    getTransport().send(message, index + 1, server);
+                    sentQueries++;
+                } catch (IOException e) {
+                    break;
+                }
 
-            DatagramPacket responsePacket = new DatagramPacket(response, response.length);
-            try {
-                socket.receive(responsePacket);
-                int responseID = parseTwoBytesToInt(response[0],response[1]);
-                int QR = (response[2] & 0x80) >>> 7; // get 1st bit
-
-                while (queryID != responseID || QR != 1) {
-                    socket.receive(responsePacket);
-                    responseID = parseTwoBytesToInt(response[0],response[1]);
-                    QR = (response[2] & 0x80) >>> 7; // get 1st bit
+                try {
+                    getTransport().receive(response);
+                    int responseID = parseTwoBytesToInt(response[0],response[1]);
+                    int QR = (response[2] & 0x80) >>> 7; // get 1st bit
+
+                    while (queryID != responseID || QR != 1) {
+                        getTransport().receive(response);
+                        responseID = parseTwoBytesToInt(response[0],response[1]);
+                        QR = (response[2] & 0x80) >>> 7; // get 1st bit
+                    }
+                    return new DNSServerResponse(ByteBuffer.wrap(response), queryID);
+                } catch (SocketTimeoutException e) {
+                    timeOutCount++;
+                } catch (IOException e) {
+                    System.exit(0);
                 }
-                return new DNSServerResponse(ByteBuffer.wrap(response), queryID);
-            } catch (SocketTimeoutException e) {
-                timeOutCount++;
-            } catch (IOException e) {
-                System.exit(0);
             }
+        } finally {
+            limiter.release(server, 1);
         }
         return new DNSServerResponse(ByteBuffer.wrap(response), queryID);
     }
 
+    /**
+     * Sends several queries to the same server back-to-back and collects their responses as they
+     * arrive, instead of waiting a full round trip for each query before sending the next one.
+     * Responses are matched to their queries by transaction ID. Queries that are still unanswered
+     * when the transport times out are sent again, up to the same number of attempts used by
+     * buildAndSendQuery.
+     *
+     * @param server The IP address of the server to which the queries are being sent.
+     * @param nodes  Hosts and record types to be used for search, at most getMaxBatchSize() of them.
+     * @return A map linking each node that received a response to its DNSServerResponse.
+     * @throws IOException if an IO Exception occurs
+     */
+    public static Map<DNSNode, DNSServerResponse> sendQueryBatch(InetAddress server,
+                                                                 List<DNSNode> nodes) throws IOException {
+        if (nodes.size() > getMaxBatchSize())
+            throw new IllegalArgumentException("At most " + getMaxBatchSize() + " queries can be batched");
+
+        Map<Integer, DNSNode> pending = new HashMap<>();
+        Map<Integer, byte[]> messages = new HashMap<>();
+        Map<Integer, Integer> lengths = new HashMap<>();
+        for (DNSNode node : nodes) {
+            int queryID = getNewUniqueQueryID();
+            byte[] message = new byte[512];
+            int length = encodeQuery(message, node, queryID);
+            pending.put(queryID, node);
+            messages.put(queryID, message);
+            lengths.put(queryID, length + 1);
+        }
+
+        Map<DNSNode, DNSServerResponse> responses = new HashMap<>();
+        int timeOutCount = 0;
+        int maxTimeOut = 2;
+        limiter.acquire(server, nodes.size());
+        try {
+            while (!pending.isEmpty() && timeOutCount < maxTimeOut) {
+                limiter.awaitTokens(server, pending.size());
+                for (Map.Entry<Integer, DNSNode> entry : pending.entrySet()) {
+                    TraceLog.querySent(entry.getKey(), entry.getValue(), server);
+                    getTransport().send(messages.get(entry.getKey()), lengths.get(entry.getKey()), server);
+                    sentQueries++;
+                }
+
+                try {
+                    while (!pending.isEmpty()) {
+                        byte[] response = new byte[1024];
+                        getTransport().receive(response);
+                        int responseID = parseTwoBytesToInt(response[0], response[1]);
+                        int QR = (response[2] & 0x80) >>> 7; // get 1st bit
+                        DNSNode node = QR == 1 ? pending.remove(responseID) : null;
+                        if (node != null)
+                            responses.put(node, new DNSServerResponse(ByteBuffer.wrap(response), responseID));
+                    }
+                } catch (SocketTimeoutException e) {
+                    timeOutCount++;
+                }
+            }
+        } finally {
+            limiter.release(server, nodes.size());
+        }
+        return responses;
+    }
+
+    /**
+     * Writes the header and question section of a query into a message buffer.
+     *
+     * @param message Byte array used to store the query.
+     * @param node    Host and record type to be used for search.
+     * @param queryID Transaction ID of the query.
+     * @return The number of bytes of the message used by the query.
+     */
+    private static int encodeQuery(byte[] message, DNSNode node, int queryID) {
+        message[0] = (byte) (queryID >>> 8);
+        message[1] = (byte) (queryID & 0xff);
+        message[5] = (byte) (1);
+        int index = 12;
+        index += RecordCodecs.encodeName(node.getDomainName(), message, index);
+        message[index++] = (byte) ((node.getType().getCode() >>> 8) & 0xff);
+        message[index++] = (byte) (node.getType().getCode() & 0xff);
+        message[index++] = (byte) 0;
+        message[index++] = (byte) 1;
+        return index;
+    }
+
     private static int parseTwoBytesToInt(byte b1, byte b2) {
         return ((b1 & 0xff) << 8) + (b2 & 0xff);
     }
@@ -164,9 +317,7 @@ public class DNSQueryHandler {
         int TC = (response[2] & 0x02) >>> 1;
         int RD = response[2] & 0x01;
 
-        if (verboseTracing) {
-            System.out.println("Response ID: " + responseID + " Authoritative = " + (AA == 1));
-        }
+        TraceLog.response(responseID, AA == 1);
 
         int RA = response[3] & 0x80;
         int rCode = response[3] & 0x0F;
@@ -179,49 +330,31 @@ public class DNSQueryHandler {
         int NSCOUNT = parseTwoBytesToInt(response[8], response[9]);
         int ARCOUNT = parseTwoBytesToInt(response[10], response[11]);
 
-        decodingIndex = 12;
-        StringBuilder QName = new StringBuilder();
-        while(true) {
-            int partialLength = response[decodingIndex++] & 0xff;
-            if (partialLength == 0) {
-                break;
-            }
-            for (int i = 0; i < partialLength; i++) {
-                char c = (char) (response[decodingIndex++] & 0xff);
-                QName.append(c);
-            }
-            QName.append('.');
-        }
+        DomainName QName = parseDomainName(response, 12);
 
         int QTYPE = parseTwoBytesToInt(response[decodingIndex++], response[decodingIndex++]);
         int QCLASS = parseTwoBytesToInt(response[decodingIndex++], response[decodingIndex++]);
 
         ResourceRecord rRecord;
 
-        if (verboseTracing) {
-            System.out.println("  Answers (" + ANCOUNT + ")");
-        }
+        TraceLog.section(responseID, "Answers", ANCOUNT);
         for (int i = 0; i < ANCOUNT; i++) {
-            rRecord = decodeAndCacheSingleRecord(response);
+            rRecord = decodeAndCacheSingleRecord(response, responseID, cache);
             answers.add(rRecord);
         }
 
-        if (verboseTracing) {
-            System.out.println("  Nameservers (" + NSCOUNT + ")");
-        }
+        TraceLog.section(responseID, "Nameservers", NSCOUNT);
         for (int i=0; i < NSCOUNT; i++) {
-            rRecord = decodeAndCacheSingleRecord(response);
+            rRecord = decodeAndCacheSingleRecord(response, responseID, cache);
             nameServers.add(rRecord);
             if (rRecord != null) {
                 nameServers.add(rRecord);
             }
         }
 
-        if (verboseTracing) {
-            System.out.println("  Additional Information (" + ARCOUNT + ")");
-        }
+        TraceLog.section(responseID, "Additional Information", ARCOUNT);
         for (int i = 0; i < ARCOUNT; i++) {
-            rRecord = decodeAndCacheSingleRecord(response);
+            rRecord = decodeAndCacheSingleRecord(response, responseID, cache);
             if (rRecord != null) {
                 additional.add(rRecord);
             }
@@ -236,9 +369,9 @@ public class DNSQueryHandler {
 //        }
     }
 
-    private static ResourceRecord decodeAndCacheSingleRecord(byte[] response) {
+    private static ResourceRecord decodeAndCacheSingleRecord(byte[] response, int responseID, DNSCache cache) {
         ResourceRecord record = null;
-        String hostName = parseHostName(response, decodingIndex);
+        DomainName hostName = cache.intern(parseDomainName(response, decodingIndex));
         int typeCode = parseTwoBytesToInt(response[decodingIndex++], response[decodingIndex++]);
         int classCode = parseTwoBytesToInt(response[decodingIndex++], response[decodingIndex++]);
         int b1 = decodingIndex++;
@@ -248,103 +381,119 @@ public class DNSQueryHandler {
         long ttl = (((response[b1] & 0xff) << 24) + ((response[b2] & 0xff) << 16) +
                 ((response[b3] & 0xff) << 8) + (response[b4] & 0xff));
         int RDataLength = parseTwoBytesToInt(response[decodingIndex++], response[decodingIndex++]);
-        boolean unknownHostError = false;
-        String address = "";
-        if (typeCode == RecordType.A.getCode()) {
-            for (int i = 0; i < RDataLength; i++) {
-                address += response[decodingIndex++] & 0xff;
-                if (i != RDataLength - 1) {
-                    address += '.';
-                }
-            }
-            InetAddress inetAddress;
-            try {
-                inetAddress = InetAddress.getByName(address);
-                record = new ResourceRecord(hostName, RecordType.getByCode(typeCode), ttl, inetAddress);
-                verbosePrintResourceRecord(record, 0);
-            } catch (UnknownHostException e) {
-                unknownHostError = true;
-            }
-        } else if (typeCode == RecordType.AAAA.getCode()) {
-            for (int i = 0; i < RDataLength / 2; i++) {
-                int octet = parseTwoBytesToInt(response[decodingIndex++], response[decodingIndex++]);
-                address += Integer.toHexString(octet) + ":";
-            }
-            address = address.substring(0, address.length() - 1);
-            InetAddress inetAddress;
-            try {
-                inetAddress = InetAddress.getByName(address);
-                record = new ResourceRecord(hostName, RecordType.getByCode(typeCode), ttl, inetAddress);
-                verbosePrintResourceRecord(record, 0);
-            } catch (UnknownHostException e) {
-                unknownHostError = true;
-            }
-        } else if (typeCode == RecordType.NS.getCode() || typeCode == RecordType.CNAME.getCode()) {
-            String data = parseHostName(response, decodingIndex);
-            record = new ResourceRecord(hostName, RecordType.getByCode(typeCode), ttl, data);
-            verbosePrintResourceRecord(record, 0);
-        } else {
-            String data = parseHostName(response, decodingIndex);
-            record = new ResourceRecord(hostName, RecordType.getByCode(typeCode), ttl, "----");
-            verbosePrintResourceRecord(record, 0);
+        int RDataStart = decodingIndex;
+        try {
+            record = RecordCodecs.forCode(typeCode).decode(hostName, typeCode, ttl,
+                    response, RDataStart, RDataLength, cache);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // keep whatever rdata the message holds, even if the message was cut short
+            record = RecordCodecs.OPAQUE.decode(hostName, typeCode, ttl, response, RDataStart,
+                    Math.max(0, Math.min(RDataLength, response.length - RDataStart)), cache);
         }
+        decodingIndex = RDataStart + RDataLength;
+        TraceLog.resourceRecord(responseID, record, typeCode);
 
         return record;
     }
 
-    private static String parseHostName(byte[] response, int index) {
-        String name = "";
+    /**
+     * Parses a (possibly compressed) domain name from a response, and advances decodingIndex to
+     * the first byte after the name.
+     *
+     * @param response The response message.
+     * @param index    Position of the first byte of the name in the response.
+     * @return The canonical domain name found at the specified position.
+     */
+    static DomainName parseDomainName(byte[] response, int index) {
+        List<String> labels = new ArrayList<>();
+        int end = -1;
+        int jumps = 0;
         while (true) {
             int partialLength = response[index++] & 0xff;
             if (partialLength == 0) {
                 break;
             } else if (partialLength < 192) {
-                for (int i = 0; i < partialLength; i++) {
-                    char c = (char) (response[index++] & 0xff);
-                    name += c;
-                }
+                labels.add(new String(response, index, partialLength, StandardCharsets.ISO_8859_1));
+                index += partialLength;
             } else {
                 int newIndex = (response[index++] & 0xff) + 256 * (partialLength - 192);
-                name += parseHostName(response, newIndex);
-                break;
+                if (end < 0) end = index;
+                if (++jumps > MAX_COMPRESSION_POINTERS) break;
+                index = newIndex;
             }
-            name += '.';
         }
 
-        decodingIndex = index;
-        if (name.length() > 0 && name.charAt(name.length() - 1) == '.') {
-            name = name.substring(0, name.length() - 1);
-        }
-        return name.toString();
+        decodingIndex = end < 0 ? index : end;
+        return DomainName.fromLabels(labels);
     }
 
     /**
-     * Formats and prints record details (for when trace is on)
+     * Finds the end of a (possibly compressed) domain name in a message, without decoding it.
      *
-     * @param record The record to be printed
-     * @param rtype  The type of the record to be printed
+     * @param response The response message.
+     * @param index    Position of the first byte of the name in the response.
+     * @return The position of the first byte after the name.
      */
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
+    static int skipDomainName(byte[] response, int index) {
+        while (true) {
+            int partialLength = response[index++] & 0xff;
+            if (partialLength == 0)
+                return index;
+            else if (partialLength >= 192)
+                return index + 1;
+            index += partialLength;
+        }
     }
 
+    /**
+     * Returns a random query ID that was not used by any of the recent queries. Only the last half
+     * of the IDs handed out are remembered: from then on, each new ID makes the oldest one
+     * available again, so that finding a free ID stays cheap.
+     */
     public static int getNewUniqueQueryID() {
-        int rtn = random.nextInt(65536);
-        for (int i = 0; i < totalQuery; i++) {
-            if (generatedQueryID[i] == rtn) {
-                return getNewUniqueQueryID();
+        return QueryIDs.next();
+    }
+
+    /**
+     * Holder of the state used to generate query IDs, only initialized when the first ID is needed
+     */
+    private static class QueryIDs {
+        private static final Random random = new Random();
+        private static final boolean[] generatedQueryID = new boolean[65536];
+        // the recent IDs, in the order they were handed out
+        private static final int[] recentQueryIDs = new int[generatedQueryID.length / 2];
+        private static int nextSlot = 0;
+        private static boolean full = false;
+
+        private static int next() {
+            if (full)
+                generatedQueryID[recentQueryIDs[nextSlot]] = false;
+            int rtn;
+            do {
+                rtn = random.nextInt(65536);
+            } while (generatedQueryID[rtn]);
+            generatedQueryID[rtn] = true;
+            recentQueryIDs[nextSlot] = rtn;
+            if (++nextSlot == recentQueryIDs.length) {
+                nextSlot = 0;
+                full = true;
             }
+            return rtn;
         }
-        generatedQueryID[totalQuery++] = rtn;
-        return rtn;
     }
 
-    private static void verbosePrint(int qID, DNSNode node, InetAddress server) {
-        System.out.println("Query ID     " + qID + " " + node.getHostName() + "  " + node.getType() + " --> " + server.getHostAddress());
+    /**
+     * Returns the number of query packets sent so far, including retransmissions
+     */
+    public static long getSentQueryCount() {
+        return sentQueries;
+    }
+
+    /**
+     * Returns the number of system calls made on the network so far by the transport in use
+     */
+    public static long getSystemCallCount() {
+        return transport == null ? 0 : transport.getSystemCallCount();
     }
 
     private static void addToCache(DNSCache cache) {
@@ -0,0 +1,39 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/** The channel used by DNSQueryHandler to exchange messages with DNS servers. The default
+ * transport uses UDP, but other transports may, for example, record the messages exchanged with
+ * the servers or replay responses previously recorded, so the resolver can run without a network.
+ */
+public interface DNSTransport {
+
+    /** Sends a query to a DNS server.
+     *
+     * @param message Byte array containing the query.
+     * @param length  Number of bytes of the query.
+     * @param server  The IP address of the server to which the query is being sent.
+     * @throws IOException if the query could not be sent
+     */
+    void send(byte[] message, int length, InetAddress server) throws IOException;
+
+    /** Waits for the next response from any server.
+     *
+     * @param buffer Byte array where the response is stored.
+     * @return The number of bytes of the response.
+     * @throws java.net.SocketTimeoutException if no response arrives within the transport's timeout
+     * @throws IOException if the response could not be received
+     */
+    int receive(byte[] buffer) throws IOException;
+
+    /** Returns the number of system calls made on the network so far (sends and receives), or 0
+     * if the transport does not use the network.
+     */
+    default long getSystemCallCount() {
+        return 0;
+    }
+
+    /** Releases any resource used by the transport. */
+    void close();
+}
@@ -0,0 +1,172 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/** A fully-qualified domain name in canonical form. Labels are stored in lowercase, without the
+ * empty root label, and the hash code and label count are computed once when the name is created.
+ * Two names that differ only in case are considered equal, and comparing or hashing a name does
+ * not need to fold case again. Only the labels are kept, so names whose labels are shared (see
+ * DNSCache.intern) do not hold their own copy of the name; the dotted form is built when needed.
+ */
+public class DomainName implements Comparable<DomainName>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final DomainName ROOT = new DomainName(new String[0]);
+
+    private final String[] labels;
+    private final int hash;
+
+    private DomainName(String[] labels) {
+        this.labels = labels;
+        // same value as the hash code of the dotted form
+        int h = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (i > 0) h = 31 * h + '.';
+            for (int j = 0; j < labels[i].length(); j++)
+                h = 31 * h + labels[i].charAt(j);
+        }
+        this.hash = h;
+    }
+
+    /** Returns the canonical domain name for a host name in dotted form. A trailing dot, if
+     * present, is ignored, and an empty host name corresponds to the root.
+     *
+     * @param hostName Host name in dotted form, in any case.
+     * @return The canonical domain name for the host name.
+     */
+    public static DomainName of(String hostName) {
+        String name = hostName.toLowerCase(Locale.ROOT);
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        if (name.isEmpty())
+            return ROOT;
+        return new DomainName(name.split("[.]", -1));
+    }
+
+    /** Returns the canonical domain name made of a list of labels, starting from the leftmost
+     * (most specific) label.
+     *
+     * @param labels Labels of the name, in any case, not including the root label.
+     * @return The canonical domain name for the labels.
+     */
+    public static DomainName fromLabels(List<String> labels) {
+        if (labels.isEmpty())
+            return ROOT;
+        String[] canonical = new String[labels.size()];
+        for (int i = 0; i < canonical.length; i++)
+            canonical[i] = labels.get(i).toLowerCase(Locale.ROOT);
+        return new DomainName(canonical);
+    }
+
+    public int getLabelCount() {
+        return labels.length;
+    }
+
+    /** Returns a single label of this name. Label 0 is the leftmost (most specific) label.
+     *
+     * @param index Position of the label, from 0 to getLabelCount() - 1.
+     * @return The label at the specified position, in lowercase.
+     */
+    public String getLabel(int index) {
+        return labels[index];
+    }
+
+    /** Returns the name obtained by removing the leftmost label of this name, i.e., the name of
+     * the zone immediately enclosing this one.
+     *
+     * @return The parent of this name, or null if this name is the root.
+     */
+    public DomainName getParent() {
+        if (labels.length == 0)
+            return null;
+        if (labels.length == 1)
+            return ROOT;
+        String[] parent = new String[labels.length - 1];
+        System.arraycopy(labels, 1, parent, 0, parent.length);
+        return new DomainName(parent);
+    }
+
+    /** Returns the name obtained by adding a label to the left of this name, i.e., the name of a
+     * zone immediately below this one. The labels of this name are shared with the new name.
+     *
+     * @param label Label to be added, in any case.
+     * @return The name made of the label followed by the labels of this name.
+     */
+    public DomainName getChild(String label) {
+        String[] child = new String[labels.length + 1];
+        child[0] = label.toLowerCase(Locale.ROOT);
+        System.arraycopy(labels, 0, child, 1, labels.length);
+        return new DomainName(child);
+    }
+
+    /** Returns true if this name is equal to or below another name, i.e., if the labels of the
+     * other name are a suffix of the labels of this name.
+     *
+     * @param zone Name of the zone to be checked.
+     * @return true if this name is inside the specified zone, or false otherwise.
+     */
+    public boolean isSubdomainOf(DomainName zone) {
+        int offset = labels.length - zone.labels.length;
+        if (offset < 0) return false;
+        for (int i = 0; i < zone.labels.length; i++)
+            if (!labels[offset + i].equals(zone.labels[i]))
+                return false;
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DomainName that = (DomainName) o;
+
+        if (hash != that.hash) return false;
+        return Arrays.equals(labels, that.labels);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(".", labels);
+    }
+
+    /** Compares two names in the same order as their dotted forms, without building them. */
+    @Override
+    public int compareTo(DomainName o) {
+        int label = 0, otherLabel = 0, index = 0, otherIndex = 0;
+        while (true) {
+            int c = charAt(label, index);
+            int d = o.charAt(otherLabel, otherIndex);
+            if (c != d || c < 0)
+                return c - d;
+            if (index++ == labels[label].length()) {
+                label++;
+                index = 0;
+            }
+            if (otherIndex++ == o.labels[otherLabel].length()) {
+                otherLabel++;
+                otherIndex = 0;
+            }
+        }
+    }
+
+    /** Returns a character of the dotted form of this name: a character of a label, a '.' after
+     * each label but the last, or -1 after the last label.
+     */
+    private int charAt(int label, int index) {
+        if (label >= labels.length)
+            return -1;
+        if (index < labels[label].length())
+            return labels[label].charAt(index);
+        return label < labels.length - 1 ? '.' : -1;
+    }
+}
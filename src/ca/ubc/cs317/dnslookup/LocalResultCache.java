@@ -0,0 +1,73 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.*;
+
+/** A small cache of recent results kept by each thread in front of the shared DNS cache. Each
+ * thread has its own map, so a hit does not touch any shared map. Entries are kept until the
+ * first of their records expires, and are discarded as soon as the results of their query change
+ * in the shared cache (i.e., when their version is no longer current), so they never return
+ * results that are no longer in the shared cache. Changes to other queries, and flushes of other
+ * zones, leave an entry valid. When a thread's map is full, its least recently used entry is
+ * evicted.
+ */
+public class LocalResultCache {
+
+    private final ThreadLocal<Map<DNSNode, Entry>> entries;
+
+    /** Results of a single query, as copied from the shared cache. */
+    private static class Entry {
+        private final Set<ResourceRecord> results;
+        private final long expirationTime;
+        private final DNSCache.Version version;
+
+        private Entry(Set<ResourceRecord> results, long expirationTime, DNSCache.Version version) {
+            this.results = results;
+            this.expirationTime = expirationTime;
+            this.version = version;
+        }
+    }
+
+    /**
+     * @param capacity Maximum number of queries kept by each thread.
+     */
+    public LocalResultCache(int capacity) {
+        this.entries = ThreadLocal.withInitial(() -> new LinkedHashMap<DNSNode, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DNSNode, Entry> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /** Returns the results of a query kept by the current thread, if they are still valid.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return The results of the query, or null if the current thread does not have valid results.
+     */
+    public Set<ResourceRecord> get(DNSNode node) {
+        Map<DNSNode, Entry> map = entries.get();
+        Entry entry = map.get(node);
+        if (entry == null)
+            return null;
+        if (!entry.version.isCurrent() ||
+                entry.expirationTime <= System.currentTimeMillis()) {
+            map.remove(node);
+            return null;
+        }
+        return entry.results;
+    }
+
+    /** Keeps a copy of the results of a query for the current thread.
+     *
+     * @param node    DNS query (host name and record type) the results are associated to.
+     * @param results Non-empty set of results, as returned by the shared cache.
+     * @param version Version of the results in the shared cache, read before they were obtained.
+     */
+    public void put(DNSNode node, Set<ResourceRecord> results, DNSCache.Version version) {
+        long expirationTime = Long.MAX_VALUE;
+        for (ResourceRecord record : results)
+            expirationTime = Math.min(expirationTime, record.getExpirationTime());
+        entries.get().put(node, new Entry(Collections.unmodifiableSet(new HashSet<>(results)),
+                expirationTime, version));
+    }
+}
@@ -0,0 +1,332 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/** Serves a hierarchy of DNS zones over UDP, so the resolver can be run and benchmarked against
+ * it without a network. The zones are read from a file in zone-file format (one record per line,
+ * as written by the export command), in which a "$SERVER address origin" line assigns the records
+ * that follow to a server listening on port 53 of that address; any address of the loopback
+ * network (e.g., 127.0.0.2) can be used. "$GENERATE first-last owner type data" adds one record
+ * for each number in the range, with every $ in the owner and data replaced by the number.
+ *
+ * Each server answers authoritatively for the names in its origin, following the CNAME records
+ * it holds, and refers queries for names at or below a delegation (NS records of a name below its
+ * origin) to the delegated servers, with any address it holds for them as glue. All servers are
+ * served by a single thread.
+ */
+public class LoopbackSimulator {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+    private static final int MAX_CNAME_CHAIN = 10;
+    private static final long GENERATED_TTL = 3600;
+
+    private final InetAddress address;
+    private final DomainName origin;
+    private final Map<DNSNode, List<Entry>> records = new HashMap<>();
+    private final Set<DomainName> names = new HashSet<>();
+    private long queries = 0;
+
+    /** A record served by the simulator, with the TTL it is served with. */
+    private static class Entry {
+        private final ResourceRecord record;
+        private final long ttl;
+
+        private Entry(ResourceRecord record, long ttl) {
+            this.record = record;
+            this.ttl = ttl;
+        }
+    }
+
+    private LoopbackSimulator(InetAddress address, DomainName origin) {
+        this.address = address;
+        this.origin = origin;
+    }
+
+    /**
+     * Main function, called when the simulator is invoked.
+     *
+     * @param args list of arguments specified in the command line.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("-v"))) {
+            System.err.println("Invalid call. Usage:");
+            System.err.println("\tjava -cp DNSLookupService.jar ca.ubc.cs317.dnslookup.LoopbackSimulator zoneFile [-v]");
+            System.err.println("where -v prints every query received on the standard error.");
+            System.exit(1);
+        }
+
+        List<LoopbackSimulator> servers;
+        try {
+            servers = readZones(args[0]);
+        } catch (IOException e) {
+            System.err.println("Could not read zones (" + e.getMessage() + ").");
+            System.exit(1);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid zone file (" + e.getMessage() + ").");
+            System.exit(1);
+            return;
+        }
+
+        try {
+            serve(servers, args.length == 2);
+        } catch (IOException e) {
+            System.err.println("Could not serve zones (" + e.getMessage() + ").");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the servers and records of a zone file.
+     *
+     * @param file Path of the zone file.
+     * @return The servers defined in the file, with their records.
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if a line of the file is invalid
+     */
+    private static List<LoopbackSimulator> readZones(String file) throws IOException {
+        List<LoopbackSimulator> servers = new ArrayList<>();
+        LoopbackSimulator server = null;
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.ISO_8859_1)) {
+            lineNumber++;
+            String[] fields = line.split(";", 2)[0].trim().split("\\s+");
+            if (fields[0].isEmpty())
+                continue;
+            try {
+                if (fields[0].equals("$SERVER")) {
+                    if (fields.length != 3)
+                        throw new IllegalArgumentException("expected $SERVER address origin");
+                    server = new LoopbackSimulator(InetAddress.getByName(fields[1]), DomainName.of(fields[2]));
+                    servers.add(server);
+                } else if (server == null) {
+                    throw new IllegalArgumentException("record before the first $SERVER line");
+                } else if (fields[0].equals("$GENERATE")) {
+                    if (fields.length < 5)
+                        throw new IllegalArgumentException("expected $GENERATE first-last owner type data");
+                    String[] range = fields[1].split("-");
+                    for (int i = Integer.parseInt(range[0]); i <= Integer.parseInt(range[1]); i++) {
+                        String number = Integer.toString(i);
+                        List<String> generated = new ArrayList<>();
+                        generated.add(fields[2].replace("$", number));
+                        generated.add(Long.toString(GENERATED_TTL));
+                        generated.add("IN");
+                        for (int j = 3; j < fields.length; j++)
+                            generated.add(fields[j].replace("$", number));
+                        server.add(parseRecord(generated.toArray(new String[0])));
+                    }
+                } else {
+                    server.add(parseRecord(fields));
+                }
+            } catch (IOException | RuntimeException e) {
+                throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        if (servers.isEmpty())
+            throw new IllegalArgumentException("no $SERVER line");
+        return servers;
+    }
+
+    /**
+     * Parses a record in zone-file format, i.e., owner, TTL, class, type and data.
+     *
+     * @param fields Fields of the line.
+     * @return The parsed record.
+     * @throws IOException if an address is invalid
+     */
+    private static Entry parseRecord(String[] fields) throws IOException {
+        if (fields.length < 5 || !fields[2].equalsIgnoreCase("IN"))
+            throw new IllegalArgumentException("expected owner ttl IN type data");
+        DomainName owner = DomainName.of(fields[0]);
+        long ttl = Long.parseLong(fields[1]);
+        RecordType type = RecordType.valueOf(fields[3].toUpperCase());
+        String data = String.join(" ", Arrays.copyOfRange(fields, 4, fields.length));
+
+        ResourceRecord record;
+        switch (type) {
+            case A:
+            case AAAA:
+                record = new ResourceRecord(owner, type, ttl, InetAddress.getByName(data));
+                break;
+            case NS:
+            case CNAME:
+            case PTR:
+                record = new ResourceRecord(owner, type, ttl, DomainName.of(data));
+                break;
+            case OTHER:
+                throw new IllegalArgumentException("unsupported type " + fields[3]);
+            default:
+                record = new ResourceRecord(owner, type, ttl, data);
+        }
+        return new Entry(record, ttl);
+    }
+
+    private void add(Entry entry) {
+        records.computeIfAbsent(entry.record.getNode(), node -> new ArrayList<>()).add(entry);
+        names.add(entry.record.getNode().getDomainName());
+    }
+
+    private List<Entry> get(DomainName name, RecordType type) {
+        return records.getOrDefault(new DNSNode(name, type), Collections.emptyList());
+    }
+
+    /**
+     * Answers the queries received by all servers until the process is stopped.
+     *
+     * @param servers Servers to be run.
+     * @param verbose If true, every query received is printed on the standard error.
+     * @throws IOException if a socket could not be opened or used
+     */
+    private static void serve(List<LoopbackSimulator> servers, boolean verbose) throws IOException {
+        Selector selector = Selector.open();
+        for (LoopbackSimulator server : servers) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(server.address, DEFAULT_DNS_PORT));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, server);
+            System.out.println("Serving " + server.origin + ". on " + server.address.getHostAddress());
+        }
+
+        ByteBuffer query = ByteBuffer.allocate(512);
+        ByteBuffer response = ByteBuffer.allocate(4096);
+        while (true) {
+            selector.select();
+            for (SelectionKey key : selector.selectedKeys()) {
+                DatagramChannel channel = (DatagramChannel) key.channel();
+                LoopbackSimulator server = (LoopbackSimulator) key.attachment();
+                SocketAddress client;
+                while ((client = receive(channel, query)) != null) {
+                    int length = server.answer(query.array(), query.position(), response.array(), verbose);
+                    if (length > 0) {
+                        response.clear().limit(length);
+                        channel.send(response, client);
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static SocketAddress receive(DatagramChannel channel, ByteBuffer query) throws IOException {
+        query.clear();
+        return channel.receive(query);
+    }
+
+    /**
+     * Builds the response to a query.
+     *
+     * @param query    The query message.
+     * @param length   Length of the query.
+     * @param response Byte array where the response is written.
+     * @param verbose  If true, the query is printed on the standard error.
+     * @return The length of the response, or 0 if the query is malformed and is ignored.
+     */
+    private int answer(byte[] query, int length, byte[] response, boolean verbose) {
+        if (length < 17 || (query[2] & 0x80) != 0)
+            return 0;
+        DomainName qName;
+        int questionEnd;
+        try {
+            qName = DNSQueryHandler.parseDomainName(query, 12);
+            questionEnd = DNSQueryHandler.skipDomainName(query, 12) + 4;
+        } catch (IndexOutOfBoundsException e) {
+            return 0;
+        }
+        if (questionEnd > length)
+            return 0;
+        int qType = ((query[questionEnd - 4] & 0xff) << 8) | (query[questionEnd - 3] & 0xff);
+        RecordType type = RecordType.getByCode(qType);
+        queries++;
+        if (verbose)
+            System.err.println(address.getHostAddress() + " " + qName + " " + type + " (query " + queries + ")");
+
+        List<Entry> answers = new ArrayList<>();
+        List<Entry> authority = new ArrayList<>();
+        List<Entry> additional = new ArrayList<>();
+        boolean authoritative = true;
+        int rCode = 0;
+
+        DomainName cut = null;
+        for (DomainName zone = qName; zone != null && cut == null && zone.isSubdomainOf(origin)
+                && !zone.equals(origin); zone = zone.getParent())
+            if (!get(zone, RecordType.NS).isEmpty())
+                cut = zone;
+
+        if (!qName.isSubdomainOf(origin)) {
+            rCode = 5; // refused
+            authoritative = false;
+        } else if (cut != null) {
+            authoritative = false;
+            authority.addAll(get(cut, RecordType.NS));
+            for (Entry ns : authority) {
+                additional.addAll(get(ns.record.getNameResult(), RecordType.A));
+                additional.addAll(get(ns.record.getNameResult(), RecordType.AAAA));
+            }
+        } else {
+            DomainName name = qName;
+            for (int i = 0; i < MAX_CNAME_CHAIN; i++) {
+                List<Entry> alias = type == RecordType.CNAME ? Collections.emptyList() : get(name, RecordType.CNAME);
+                if (alias.isEmpty()) {
+                    answers.addAll(get(name, type));
+                    break;
+                }
+                answers.addAll(alias);
+                name = alias.get(0).record.getNameResult();
+                if (!name.isSubdomainOf(origin))
+                    break;
+            }
+            if (answers.isEmpty() && !names.contains(qName))
+                rCode = 3; // name error
+        }
+
+        System.arraycopy(query, 0, response, 0, questionEnd);
+        response[2] = (byte) (0x80 | (query[2] & 0x79) | (authoritative ? 0x04 : 0));
+        response[3] = (byte) rCode;
+        int index = questionEnd;
+        index = writeSection(answers, response, index, 6);
+        index = writeSection(authority, response, index, 8);
+        return writeSection(additional, response, index, 10);
+    }
+
+    /**
+     * Writes the records of a section of a response, without name compression, and sets the
+     * number of records of the section in the header.
+     *
+     * @param section     Records of the section.
+     * @param response    Byte array where the response is written.
+     * @param index       Position where the first record is written.
+     * @param countOffset Position of the record count of the section in the header.
+     * @return The position after the last record written.
+     */
+    private static int writeSection(List<Entry> section, byte[] response, int index, int countOffset) {
+        response[countOffset] = (byte) (section.size() >>> 8);
+        response[countOffset + 1] = (byte) section.size();
+        for (Entry entry : section) {
+            ResourceRecord record = entry.record;
+            int typeCode = record.getType().getCode();
+            index += RecordCodecs.encodeName(record.getNode().getDomainName(), response, index);
+            response[index++] = (byte) (typeCode >>> 8);
+            response[index++] = (byte) typeCode;
+            response[index++] = 0;
+            response[index++] = 1;
+            for (int shift = 24; shift >= 0; shift -= 8)
+                response[index++] = (byte) (entry.ttl >>> shift);
+            int length = RecordCodecs.forCode(typeCode).encode(record, response, index + 2);
+            response[index++] = (byte) (length >>> 8);
+            response[index++] = (byte) length;
+            index += length;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,44 @@
+package ca.ubc.cs317.dnslookup;
+
+/** Decodes and encodes the data section (rdata) of resource records of a specific type. Codecs
+ * are registered by type code in RecordCodecs, and are used by the query handler to decode
+ * responses into resource records that can be cached and printed.
+ */
+public interface RecordCodec {
+
+    /** Decodes the rdata of a resource record from a DNS message.
+     *
+     * @param hostName Owner name of the record.
+     * @param typeCode Type code of the record, as found in the message.
+     * @param ttl      TTL of the record, in seconds.
+     * @param message  The DNS message containing the record.
+     * @param offset   Position of the first byte of the rdata in the message.
+     * @param length   Length of the rdata, in bytes.
+     * @param cache    Cache used to intern the domain names found in the rdata.
+     * @return The decoded resource record.
+     * @throws IllegalArgumentException if the rdata is malformed
+     */
+    ResourceRecord decode(DomainName hostName, int typeCode, long ttl, byte[] message, int offset,
+                          int length, DNSCache cache);
+
+    /** Encodes the rdata of a resource record in wire format, without name compression.
+     *
+     * @param record Resource record to be encoded.
+     * @param out    Byte array where the rdata is written.
+     * @param offset Position in out where the first byte of the rdata is written.
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException if the record cannot be encoded by this codec
+     */
+    int encode(ResourceRecord record, byte[] out, int offset);
+
+    /** Formats the rdata of a resource record as in a zone file, where domain names are written
+     * in absolute form, with a trailing dot. By default, the textual result of the record is used
+     * as is, which is only correct for types whose rdata contains no domain name.
+     *
+     * @param record Resource record to be formatted.
+     * @return The rdata of the record in zone-file format.
+     */
+    default String format(ResourceRecord record) {
+        return record.getTextResult();
+    }
+}
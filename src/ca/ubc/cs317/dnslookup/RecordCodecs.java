@@ -0,0 +1,350 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/** Registry of the codecs used to decode and encode the rdata of resource records. Codecs are
+ * kept in a table indexed by type code, so finding the codec for a record does not require
+ * searching the list of record types. Types without a registered codec are handled as opaque
+ * data, and represented in the generic format defined by RFC 3597 (e.g., "\# 4 0a000001").
+ */
+public class RecordCodecs {
+
+    private static final RecordCodec[] CODECS = new RecordCodec[256];
+
+    /** Codec used for types that have no registered codec, and for malformed rdata. */
+    public static final RecordCodec OPAQUE = new OpaqueCodec();
+
+    static {
+        Arrays.fill(CODECS, OPAQUE);
+        register(RecordType.A.getCode(), new AddressCodec());
+        register(RecordType.AAAA.getCode(), new AddressCodec());
+        register(RecordType.NS.getCode(), new NameCodec());
+        register(RecordType.CNAME.getCode(), new NameCodec());
+        register(RecordType.PTR.getCode(), new NameCodec());
+        register(RecordType.MX.getCode(), new MXCodec());
+        register(RecordType.SOA.getCode(), new SOACodec());
+        register(RecordType.TXT.getCode(), new TXTCodec());
+        register(RecordType.SRV.getCode(), new SRVCodec());
+    }
+
+    /** Registers the codec to be used for a record type, replacing any codec previously
+     * registered for that type.
+     *
+     * @param typeCode Type code, from 0 to 255.
+     * @param codec    Codec to be used for records of that type.
+     */
+    public static void register(int typeCode, RecordCodec codec) {
+        if (typeCode < 0 || typeCode >= CODECS.length)
+            throw new IllegalArgumentException("Type code out of range: " + typeCode);
+        CODECS[typeCode] = codec;
+    }
+
+    /** Returns the codec registered for a type code, or the opaque codec if there is none.
+     *
+     * @param typeCode Type code of the record.
+     * @return The codec to be used for the record.
+     */
+    public static RecordCodec forCode(int typeCode) {
+        if (typeCode >= 0 && typeCode < CODECS.length)
+            return CODECS[typeCode];
+        return OPAQUE;
+    }
+
+    /** Encodes a domain name in wire format, without compression.
+     *
+     * @param name   Domain name to be encoded.
+     * @param out    Byte array where the name is written.
+     * @param offset Position in out where the first byte of the name is written.
+     * @return The number of bytes written.
+     */
+    public static int encodeName(DomainName name, byte[] out, int offset) {
+        int index = offset;
+        for (int i = 0; i < name.getLabelCount(); i++) {
+            String label = name.getLabel(i);
+            out[index++] = (byte) label.length();
+            for (int j = 0; j < label.length(); j++)
+                out[index++] = (byte) label.charAt(j);
+        }
+        out[index++] = 0;
+        return index - offset;
+    }
+
+    private static int readUnsignedShort(byte[] message, int offset) {
+        return ((message[offset] & 0xff) << 8) | (message[offset + 1] & 0xff);
+    }
+
+    private static long readUnsignedInt(byte[] message, int offset) {
+        return ((long) readUnsignedShort(message, offset) << 16) | readUnsignedShort(message, offset + 2);
+    }
+
+    private static void writeShort(int value, byte[] out, int offset) {
+        out[offset] = (byte) (value >>> 8);
+        out[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(long value, byte[] out, int offset) {
+        writeShort((int) (value >>> 16), out, offset);
+        writeShort((int) value, out, offset + 2);
+    }
+
+    /** Returns a domain name in absolute form, i.e., followed by the root label. */
+    private static String absolute(String name) {
+        return name + ".";
+    }
+
+    private static String[] splitText(ResourceRecord record, int fields) {
+        String[] parts = record.getTextResult().split(" ");
+        if (parts.length != fields)
+            throw new IllegalArgumentException("Invalid " + record.getType() + " data: " + record.getTextResult());
+        return parts;
+    }
+
+    /** A and AAAA records: a 4- or 16-byte address. */
+    private static class AddressCodec implements RecordCodec {
+        @Override
+        public ResourceRecord decode(DomainName hostName, int typeCode, long ttl, byte[] message,
+                                     int offset, int length, DNSCache cache) {
+            if (length != (typeCode == RecordType.A.getCode() ? 4 : 16))
+                throw new IllegalArgumentException("Invalid address length: " + length);
+            try {
+                InetAddress address = InetAddress.getByAddress(Arrays.copyOfRange(message, offset, offset + length));
+                return new ResourceRecord(hostName, RecordType.getByCode(typeCode), ttl, address);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        public int encode(ResourceRecord record, byte[] out, int offset) {
+            byte[] address = record.getInetResult().getAddress();
+            System.arraycopy(address, 0, out, offset, address.length);
+            return address.length;
+        }
+    }
+
+    /** NS, CNAME and PTR records: a single domain name. */
+    private static class NameCodec implements RecordCodec {
+        @Override
+        public ResourceRecord decode(DomainName hostName, int typeCode, long ttl, byte[] message,
+                                     int offset, int length, DNSCache cache) {
+            DomainName name = cache.intern(DNSQueryHandler.parseDomainName(message, offset));
+            return new ResourceRecord(hostName, RecordType.getByCode(typeCode), ttl, name);
+        }
+
+        @Override
+        public int encode(ResourceRecord record, byte[] out, int offset) {
+            return encodeName(record.getNameResult(), out, offset);
+        }
+
+        @Override
+        public String format(ResourceRecord record) {
+            return absolute(record.getNameResult().toString());
+        }
+    }
+
+    /** MX records: a preference followed by the name of the mail exchange. */
+    private static class MXCodec implements RecordCodec {
+        @Override
+        public ResourceRecord decode(DomainName hostName, int typeCode, long ttl, byte[] message,
+                                     int offset, int length, DNSCache cache) {
+            int preference = readUnsignedShort(message, offset);
+            DomainName exchange = cache.intern(DNSQueryHandler.parseDomainName(message, offset + 2));
+            return new ResourceRecord(hostName, RecordType.MX, ttl, preference + " " + exchange, exchange);
+        }
+
+        @Override
+        public int encode(ResourceRecord record, byte[] out, int offset) {
+            String[] parts = splitText(record, 2);
+            writeShort(Integer.parseInt(parts[0]), out, offset);
+            return 2 + encodeName(DomainName.of(parts[1]), out, offset + 2);
+        }
+
+        @Override
+        public String format(ResourceRecord record) {
+            String[] parts = splitText(record, 2);
+            return parts[0] + " " + absolute(parts[1]);
+        }
+    }
+
+    /** SOA records: primary name server, responsible mailbox and five 32-bit timers. */
+    private static class SOACodec implements RecordCodec {
+        @Override
+        public ResourceRecord decode(DomainName hostName, int typeCode, long ttl, byte[] message,
+                                     int offset, int length, DNSCache cache) {
+            DomainName primary = cache.intern(DNSQueryHandler.parseDomainName(message, offset));
+            int index = DNSQueryHandler.skipDomainName(message, offset);
+            DomainName mailbox = DNSQueryHandler.parseDomainName(message, index);
+            index = DNSQueryHandler.skipDomainName(message, index);
+            StringBuilder text = new StringBuilder().append(primary).append(' ').append(mailbox);
+            for (int i = 0; i < 5; i++, index += 4)
+                text.append(' ').append(readUnsignedInt(message, index));
+            if (index > offset + length)
+                throw new IllegalArgumentException("SOA data exceeds its length");
+            return new ResourceRecord(hostName, RecordType.SOA, ttl, text.toString(), primary);
+        }
+
+        @Override
+        public int encode(ResourceRecord record, byte[] out, int offset) {
+            String[] parts = splitText(record, 7);
+            int index = offset;
+            index += encodeName(DomainName.of(parts[0]), out, index);
+            index += encodeName(DomainName.of(parts[1]), out, index);
+            for (int i = 2; i < 7; i++, index += 4)
+                writeInt(Long.parseLong(parts[i]), out, index);
+            return index - offset;
+        }
+
+        @Override
+        public String format(ResourceRecord record) {
+            String[] parts = splitText(record, 7);
+            StringBuilder text = new StringBuilder().append(absolute(parts[0])).append(' ').append(absolute(parts[1]));
+            for (int i = 2; i < 7; i++)
+                text.append(' ').append(parts[i]);
+            return text.toString();
+        }
+    }
+
+    /** TXT records: one or more length-prefixed character strings, shown as quoted strings. */
+    private static class TXTCodec implements RecordCodec {
+        @Override
+        public ResourceRecord decode(DomainName hostName, int typeCode, long ttl, byte[] message,
+                                     int offset, int length, DNSCache cache) {
+            StringBuilder text = new StringBuilder();
+            int index = offset;
+            while (index < offset + length) {
+                int stringLength = message[index++] & 0xff;
+                if (index + stringLength > offset + length)
+                    throw new IllegalArgumentException("TXT string exceeds its length");
+                if (text.length() > 0) text.append(' ');
+                text.append('"');
+                for (int i = 0; i < stringLength; i++) {
+                    int c = message[index++] & 0xff;
+                    if (c == '"' || c == '\\')
+                        text.append('\\').append((char) c);
+                    else if (c < 0x20 || c > 0x7e)
+                        text.append(String.format("\\%03d", c));
+                    else
+                        text.append((char) c);
+                }
+                text.append('"');
+            }
+            return new ResourceRecord(hostName, RecordType.TXT, ttl, text.toString());
+        }
+
+        @Override
+        public int encode(ResourceRecord record, byte[] out, int offset) {
+            String text = record.getTextResult();
+            int index = offset;
+            int i = 0;
+            while (i < text.length()) {
+                if (text.charAt(i++) != '"') continue;
+                int lengthIndex = index++;
+                while (text.charAt(i) != '"') {
+                    char c = text.charAt(i++);
+                    if (c == '\\' && Character.isDigit(text.charAt(i))) {
+                        out[index++] = (byte) Integer.parseInt(text.substring(i, i + 3));
+                        i += 3;
+                    } else if (c == '\\') {
+                        out[index++] = (byte) text.charAt(i++);
+                    } else {
+                        out[index++] = (byte) c;
+                    }
+                }
+                i++;
+                out[lengthIndex] = (byte) (index - lengthIndex - 1);
+            }
+            return index - offset;
+        }
+    }
+
+    /** SRV records: priority, weight, port and the name of the target host. */
+    private static class SRVCodec implements RecordCodec {
+        @Override
+        public ResourceRecord decode(DomainName hostName, int typeCode, long ttl, byte[] message,
+                                     int offset, int length, DNSCache cache) {
+            int priority = readUnsignedShort(message, offset);
+            int weight = readUnsignedShort(message, offset + 2);
+            int port = readUnsignedShort(message, offset + 4);
+            DomainName target = cache.intern(DNSQueryHandler.parseDomainName(message, offset + 6));
+            return new ResourceRecord(hostName, RecordType.SRV, ttl,
+                    priority + " " + weight + " " + port + " " + target, target);
+        }
+
+        @Override
+        public int encode(ResourceRecord record, byte[] out, int offset) {
+            String[] parts = splitText(record, 4);
+            for (int i = 0; i < 3; i++)
+                writeShort(Integer.parseInt(parts[i]), out, offset + 2 * i);
+            return 6 + encodeName(DomainName.of(parts[3]), out, offset + 6);
+        }
+
+        @Override
+        public String format(ResourceRecord record) {
+            String[] parts = splitText(record, 4);
+            return parts[0] + " " + parts[1] + " " + parts[2] + " " + absolute(parts[3]);
+        }
+    }
+
+    /** A record of a type without a RecordType of its own, which keeps its type code so it can
+     * be told apart from the records of other unknown types and written as TYPEnnn.
+     */
+    private static class OpaqueRecord extends ResourceRecord {
+        private static final long serialVersionUID = 1L;
+
+        private final int typeCode;
+
+        private OpaqueRecord(DomainName hostName, int typeCode, long ttl, String result) {
+            super(hostName, RecordType.OTHER, ttl, result);
+            this.typeCode = typeCode;
+        }
+
+        @Override
+        public int getTypeCode() {
+            return typeCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return super.equals(o) && typeCode == ((OpaqueRecord) o).typeCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * super.hashCode() + typeCode;
+        }
+    }
+
+    /** Any other type: the rdata is kept as is, in the generic format of RFC 3597. */
+    private static class OpaqueCodec implements RecordCodec {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        @Override
+        public ResourceRecord decode(DomainName hostName, int typeCode, long ttl, byte[] message,
+                                     int offset, int length, DNSCache cache) {
+            if (offset + length > message.length)
+                throw new IllegalArgumentException("Record data exceeds the message");
+            StringBuilder text = new StringBuilder("\\# ").append(length);
+            if (length > 0) text.append(' ');
+            for (int i = offset; i < offset + length; i++)
+                text.append(HEX[(message[i] >>> 4) & 0xf]).append(HEX[message[i] & 0xf]);
+            RecordType type = RecordType.getByCode(typeCode);
+            if (type == RecordType.OTHER)
+                return new OpaqueRecord(hostName, typeCode, ttl, text.toString());
+            return new ResourceRecord(hostName, type, ttl, text.toString());
+        }
+
+        @Override
+        public int encode(ResourceRecord record, byte[] out, int offset) {
+            String[] parts = record.getTextResult().split(" ");
+            if (parts.length < 2 || !parts[0].equals("\\#"))
+                throw new IllegalArgumentException("Not in generic format: " + record.getTextResult());
+            int length = Integer.parseInt(parts[1]);
+            String hex = parts.length > 2 ? parts[2] : "";
+            for (int i = 0; i < length; i++)
+                out[offset + i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            return length;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Transport that forwards messages to another transport and records every response received,
+ * along with the server and question it answers, into a corpus file that can later be served by
+ * ReplayTransport.
+ */
+public class RecordingTransport implements DNSTransport {
+
+    private final DNSTransport transport;
+    private final DataOutputStream corpus;
+    private final Map<Integer, byte[]> questions = new HashMap<>();
+    private final Map<Integer, InetAddress> servers = new HashMap<>();
+
+    /**
+     * @param transport Transport used to exchange the messages.
+     * @param file      Path of the corpus file to be created.
+     * @throws IOException if the corpus file could not be created
+     */
+    public RecordingTransport(DNSTransport transport, String file) throws IOException {
+        this.transport = transport;
+        this.corpus = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    /** Returns the question section of a message, which, with the server, identifies the query
+     * a response answers.
+     *
+     * @param message The DNS message.
+     * @return A copy of the question section of the message.
+     */
+    static byte[] getQuestion(byte[] message) {
+        int end = DNSQueryHandler.skipDomainName(message, 12) + 4;
+        byte[] question = new byte[end - 12];
+        System.arraycopy(message, 12, question, 0, question.length);
+        return question;
+    }
+
+    static int getTransactionID(byte[] message) {
+        return ((message[0] & 0xff) << 8) | (message[1] & 0xff);
+    }
+
+    @Override
+    public void send(byte[] message, int length, InetAddress server) throws IOException {
+        int queryID = getTransactionID(message);
+        questions.put(queryID, getQuestion(message));
+        servers.put(queryID, server);
+        transport.send(message, length, server);
+    }
+
+    @Override
+    public int receive(byte[] buffer) throws IOException {
+        int length = transport.receive(buffer);
+        record(buffer, length);
+        return length;
+    }
+
+    /** Saves a response into the corpus, if it answers a query sent through this transport. */
+    private void record(byte[] buffer, int length) throws IOException {
+        int responseID = getTransactionID(buffer);
+        byte[] question = questions.remove(responseID);
+        InetAddress server = servers.remove(responseID);
+        if (question != null) {
+            byte[] address = server.getAddress();
+            corpus.writeShort(address.length);
+            corpus.write(address);
+            corpus.writeShort(question.length);
+            corpus.write(question);
+            corpus.writeShort(length);
+            corpus.write(buffer, 0, length);
+        }
+    }
+
+    @Override
+    public long getSystemCallCount() {
+        return transport.getSystemCallCount();
+    }
+
+    @Override
+    public void close() {
+        try {
+            corpus.close();
+        } catch (IOException e) {
+            System.err.println("Could not save recorded responses (" + e.getMessage() + ").");
+        }
+        transport.close();
+    }
+}
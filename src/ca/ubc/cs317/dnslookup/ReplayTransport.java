@@ -0,0 +1,79 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Transport that never uses the network. Responses are served from a corpus recorded by
+ * RecordingTransport, looked up by the server and question of each query, with the transaction
+ * ID replaced by the one of the query. Queries that are not in the corpus get no response, and
+ * the next receive times out immediately instead of waiting, so resolutions are deterministic
+ * and do not depend on network latency.
+ */
+public class ReplayTransport implements DNSTransport {
+
+    private final Map<String, byte[]> responses = new HashMap<>();
+    private final Deque<byte[]> ready = new ArrayDeque<>();
+
+    /**
+     * @param file Path of a corpus file created by RecordingTransport.
+     * @throws IOException if the corpus file could not be read
+     */
+    public ReplayTransport(String file) throws IOException {
+        try (DataInputStream corpus = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] address;
+                try {
+                    address = new byte[corpus.readUnsignedShort()];
+                } catch (EOFException e) {
+                    break;
+                }
+                corpus.readFully(address);
+                byte[] question = new byte[corpus.readUnsignedShort()];
+                corpus.readFully(question);
+                byte[] response = new byte[corpus.readUnsignedShort()];
+                corpus.readFully(response);
+                responses.put(getKey(InetAddress.getByAddress(address), question), response);
+            }
+        }
+    }
+
+    private static String getKey(InetAddress server, byte[] question) {
+        return server.getHostAddress() + " " + new String(question, StandardCharsets.ISO_8859_1);
+    }
+
+    public int size() {
+        return responses.size();
+    }
+
+    @Override
+    public void send(byte[] message, int length, InetAddress server) {
+        byte[] recorded = responses.get(getKey(server, RecordingTransport.getQuestion(message)));
+        if (recorded == null)
+            return;
+        byte[] response = recorded.clone();
+        response[0] = message[0];
+        response[1] = message[1];
+        ready.add(response);
+    }
+
+    @Override
+    public int receive(byte[] buffer) throws IOException {
+        byte[] response = ready.poll();
+        if (response == null)
+            throw new SocketTimeoutException("No recorded response");
+        int length = Math.min(response.length, buffer.length);
+        System.arraycopy(response, 0, buffer, 0, length);
+        return length;
+    }
+
+    @Override
+    public void close() {
+        ready.clear();
+    }
+}
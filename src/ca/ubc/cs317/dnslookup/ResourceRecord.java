@@ -3,11 +3,13 @@ package ca.ubc.cs317.dnslookup;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.Date;
+import java.util.Objects;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
- * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
- * and is represented by an expiration time calculated as a delta from the current time.
+ * a domain name (e.g., CNAME or NS records), along with its textual representation. A TTL
+ * (time-to-live) field is also specified, and is represented by an expiration time calculated
+ * as a delta from the current time.
  */
 public class ResourceRecord implements Serializable {
 
@@ -15,19 +17,38 @@ public class ResourceRecord implements Serializable {
     private Date expirationTime;
     private String textResult;
     private InetAddress inetResult;
+    private DomainName nameResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
+        this(DomainName.of(hostName), type, ttl, result);
+    }
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
+        this(DomainName.of(hostName), type, ttl, result);
+    }
+
+    public ResourceRecord(DomainName hostName, RecordType type, long ttl, String result) {
         this.node = new DNSNode(hostName, type);
         this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
         this.textResult = result;
         this.inetResult = null;
     }
 
-    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
+    public ResourceRecord(DomainName hostName, RecordType type, long ttl, InetAddress result) {
         this(hostName, type, ttl, result.getHostAddress());
         this.inetResult = result;
     }
 
+    public ResourceRecord(DomainName hostName, RecordType type, long ttl, DomainName result) {
+        // the textual result is built from the name when needed, instead of keeping a copy
+        this(hostName, type, ttl, null, result);
+    }
+
+    public ResourceRecord(DomainName hostName, RecordType type, long ttl, String result, DomainName nameResult) {
+        this(hostName, type, ttl, result);
+        this.nameResult = nameResult;
+    }
+
     public DNSNode getNode() {
         return node;
     }
@@ -40,6 +61,15 @@ public class ResourceRecord implements Serializable {
         return node.getType();
     }
 
+    /** The numeric type of this record. It only differs from the code of getType() for records
+     * of types without a RecordType of their own, which are all of type OTHER.
+     *
+     * @return The type code of this record, as found in the DNS response.
+     */
+    public int getTypeCode() {
+        return node.getType().getCode();
+    }
+
     /** The TTL for this record. It is returned based on the (ceiling of the) number of seconds
      * remaining until this record expires. The TTL returned by this method will only match the
      * TTL obtained from the DNS server in the first second from the time this record was
@@ -51,6 +81,14 @@ public class ResourceRecord implements Serializable {
         return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
     }
 
+    /** The time at which this record expires.
+     *
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime.getTime();
+    }
+
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
      * should not be maintained in cache, and should instead be retrieved again from an
      * authoritative DNS server.
@@ -74,13 +112,22 @@ public class ResourceRecord implements Serializable {
     }
 
     public String getTextResult() {
-        return textResult;
+        return textResult != null ? textResult : nameResult.toString();
     }
 
     public InetAddress getInetResult() {
         return inetResult;
     }
 
+    /** The domain name this record points to, for records whose result is or includes a name
+     * (e.g., CNAME or NS records, or the exchange of an MX record).
+     *
+     * @return The domain name result of this record, or null if the result is not a name.
+     */
+    public DomainName getNameResult() {
+        return nameResult;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -89,14 +136,15 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
+        if (!Objects.equals(textResult, record.textResult)) return false;
+        if (!Objects.equals(nameResult, record.nameResult)) return false;
         return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        result = 31 * result + (textResult != null ? textResult.hashCode() : nameResult.hashCode());
         return result;
     }
 }
@@ -0,0 +1,318 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/** Trace of the resolver's activity (queries sent, responses and their records, referrals and
+ * cache hits). Events are recorded into a bounded lock-free ring buffer, and a background thread
+ * drains them to the standard output or a file, either as text (in the same format traditionally
+ * printed by the trace command) or as one JSON object per line. Recording an event never waits
+ * for the output: if the buffer is full, the event is dropped and counted. Tracing can also be
+ * sampled, in which case only one lookup out of every N is traced, with all the events it causes.
+ */
+public class TraceLog {
+
+    private static final int CAPACITY = 1 << 14;
+    private static final long DRAIN_INTERVAL_NANOS = 1_000_000;
+
+    private enum Kind { QUERY, RESPONSE, SECTION, RECORD, REFERRAL, CACHE_HIT }
+
+    /** A single traced event. Only the fields relevant to its kind are set. */
+    private static class Event {
+        private final Kind kind;
+        private final long time = System.currentTimeMillis();
+        private final int id;
+        private final String name;
+        private final String type;
+        private final String server;
+        private final long value;
+        private final String data;
+
+        private Event(Kind kind, int id, String name, String type, String server, long value, String data) {
+            this.kind = kind;
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.server = server;
+            this.value = value;
+            this.data = data;
+        }
+    }
+
+    private static final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong head = new AtomicLong();
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong sampleCounter = new AtomicLong();
+    private static final ThreadLocal<Boolean> lookupSampled = ThreadLocal.withInitial(() -> true);
+
+    private static volatile boolean enabled = false;
+    private static volatile boolean json = false;
+    private static volatile int sampleRate = 1;
+    private static Writer output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+    private static boolean closeOutput = false;
+    private static Thread writer;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Returns true if some recorded events have not been written yet, e.g., because tracing was
+     * turned off while the writer was still draining them.
+     *
+     * @return true if flush would have events to wait for.
+     */
+    public static boolean hasPending() {
+        return tail.get() < head.get();
+    }
+
+    /** Turns tracing on or off. The background writer is started the first time tracing is
+     * turned on; turning tracing off waits until the events already recorded are written.
+     *
+     * @param tracing true if events should be recorded.
+     */
+    public static synchronized void setEnabled(boolean tracing) {
+        if (tracing && writer == null) {
+            writer = new Thread(TraceLog::drainLoop, "trace-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        if (!tracing)
+            flush();
+        enabled = tracing;
+    }
+
+    /** Selects the format of the trace output.
+     *
+     * @param useJson true to write one JSON object per event, false to write text.
+     */
+    public static void setJson(boolean useJson) {
+        flush();
+        json = useJson;
+    }
+
+    /** Traces only one lookup out of every rate lookups.
+     *
+     * @param rate Sampling rate; 1 traces every lookup.
+     */
+    public static void setSampleRate(int rate) {
+        if (rate < 1)
+            throw new IllegalArgumentException("Sampling rate must be at least 1");
+        sampleRate = rate;
+    }
+
+    /** Redirects the trace output to a file, or back to the standard output.
+     *
+     * @param file Path of the file where the trace is appended, or null for the standard output.
+     * @throws IOException if the file could not be opened
+     */
+    public static void setOutput(String file) throws IOException {
+        flush();
+        Writer newOutput = file == null ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8) :
+                new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+        synchronized (ring) {
+            if (closeOutput)
+                output.close();
+            else
+                output.flush();
+            output = new BufferedWriter(newOutput);
+            closeOutput = file != null;
+        }
+    }
+
+    /** Returns the number of events dropped so far because the ring buffer was full.
+     *
+     * @return The number of dropped events.
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Decides whether the lookup the current thread is starting is traced, when tracing is
+     * sampled. Every event recorded by the thread until its next lookup (queries, responses,
+     * referrals and cache hits, including those of CNAME targets) follows that decision.
+     */
+    public static void startLookup() {
+        if (enabled && sampleRate > 1)
+            lookupSampled.set(sampleCounter.getAndIncrement() % sampleRate == 0);
+    }
+
+    private static boolean sampled() {
+        return sampleRate == 1 || lookupSampled.get();
+    }
+
+    public static void querySent(int queryID, DNSNode node, InetAddress server) {
+        if (enabled && sampled())
+            record(new Event(Kind.QUERY, queryID, node.getHostName(), node.getType().toString(),
+                    server.getHostAddress(), 0, null));
+    }
+
+    public static void response(int responseID, boolean authoritative) {
+        if (enabled && sampled())
+            record(new Event(Kind.RESPONSE, responseID, null, null, null, authoritative ? 1 : 0, null));
+    }
+
+    public static void section(int responseID, String title, int count) {
+        if (enabled && sampled())
+            record(new Event(Kind.SECTION, responseID, null, null, null, count, title));
+    }
+
+    public static void resourceRecord(int responseID, ResourceRecord record, int typeCode) {
+        if (enabled && sampled())
+            record(new Event(Kind.RECORD, responseID, record.getHostName(),
+                    record.getType() == RecordType.OTHER ? Integer.toString(typeCode) : record.getType().toString(),
+                    null, record.getTTL(), record.getTextResult()));
+    }
+
+    public static void referral(DNSNode node, DomainName nameServer, InetAddress server) {
+        if (enabled && sampled())
+            record(new Event(Kind.REFERRAL, 0, node.getHostName(), node.getType().toString(),
+                    server.getHostAddress(), 0, nameServer.toString()));
+    }
+
+    public static void cacheHit(DNSNode node, int results) {
+        if (enabled && sampled())
+            record(new Event(Kind.CACHE_HIT, 0, node.getHostName(), node.getType().toString(),
+                    null, results, null));
+    }
+
+    /** Adds an event to the ring buffer, or drops it if the buffer is full. Several threads may
+     * record events concurrently; only the writer thread removes them.
+     */
+    private static void record(Event event) {
+        while (true) {
+            long t = tail.get();
+            long h = head.get();
+            if (h - t >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (head.compareAndSet(h, h + 1)) {
+                ring.lazySet((int) (h & (CAPACITY - 1)), event);
+                return;
+            }
+        }
+    }
+
+    /** Waits until every event recorded so far has been written. This is used before printing
+     * anything else on the standard output, so the trace and the results are not interleaved.
+     */
+    public static void flush() {
+        if (writer == null) return;
+        long target = head.get();
+        while (tail.get() < target) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(DRAIN_INTERVAL_NANOS / 10);
+        }
+        synchronized (ring) {
+            try {
+                output.flush();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static void drainLoop() {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            synchronized (ring) {
+                long t = tail.get();
+                Event event;
+                while (t < head.get() && (event = ring.get((int) (t & (CAPACITY - 1)))) != null) {
+                    ring.set((int) (t & (CAPACITY - 1)), null);
+                    line.setLength(0);
+                    if (json)
+                        formatJson(event, line);
+                    else
+                        formatText(event, line);
+                    try {
+                        output.write(line.toString());
+                    } catch (IOException ignored) {}
+                    tail.lazySet(++t);
+                }
+                try {
+                    output.flush();
+                } catch (IOException ignored) {}
+            }
+            LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+        }
+    }
+
+    private static void formatText(Event event, StringBuilder line) {
+        switch (event.kind) {
+            case QUERY:
+                line.append("\n\nQuery ID     ").append(event.id).append(' ').append(event.name).append("  ")
+                        .append(event.type).append(" --> ").append(event.server);
+                break;
+            case RESPONSE:
+                line.append("Response ID: ").append(event.id).append(" Authoritative = ").append(event.value == 1);
+                break;
+            case SECTION:
+                line.append("  ").append(event.data).append(" (").append(event.value).append(')');
+                break;
+            case RECORD:
+                line.append(String.format("       %-30s %-10d %-4s %s", event.name, event.value, event.type, event.data));
+                break;
+            case REFERRAL:
+                line.append("Referral     ").append(event.name).append("  ").append(event.type).append(" --> ")
+                        .append(event.data).append(" (").append(event.server).append(')');
+                break;
+            case CACHE_HIT:
+                line.append("Cache hit    ").append(event.name).append("  ").append(event.type)
+                        .append(" (").append(event.value).append(')');
+                break;
+        }
+        line.append('\n');
+    }
+
+    private static void formatJson(Event event, StringBuilder line) {
+        line.append("{\"time\":").append(event.time)
+                .append(",\"event\":\"").append(event.kind.name().toLowerCase()).append('"');
+        if (event.kind == Kind.QUERY || event.kind == Kind.RESPONSE || event.kind == Kind.SECTION ||
+                event.kind == Kind.RECORD)
+            line.append(",\"id\":").append(event.id);
+        appendJson(line, "name", event.name);
+        appendJson(line, "type", event.type);
+        appendJson(line, "server", event.server);
+        switch (event.kind) {
+            case RESPONSE:
+                line.append(",\"authoritative\":").append(event.value == 1);
+                break;
+            case SECTION:
+                appendJson(line, "section", event.data);
+                line.append(",\"count\":").append(event.value);
+                break;
+            case RECORD:
+                line.append(",\"ttl\":").append(event.value);
+                appendJson(line, "data", event.data);
+                break;
+            case REFERRAL:
+                appendJson(line, "nameserver", event.data);
+                break;
+            case CACHE_HIT:
+                line.append(",\"results\":").append(event.value);
+                break;
+            default:
+                break;
+        }
+        line.append("}\n");
+    }
+
+    private static void appendJson(StringBuilder line, String key, String value) {
+        if (value == null) return;
+        line.append(",\"").append(key).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                line.append('\\').append(c);
+            else if (c < 0x20)
+                line.append(String.format("\\u%04x", (int) c));
+            else
+                line.append(c);
+        }
+        line.append('"');
+    }
+}
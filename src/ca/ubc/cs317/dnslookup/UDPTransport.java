@@ -0,0 +1,51 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+/** Transport that exchanges messages with DNS servers over UDP, on the standard DNS port. */
+public class UDPTransport implements DNSTransport {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+
+    private final DatagramSocket socket;
+    private long systemCalls = 0;
+
+    /**
+     * Sets up the socket and set the timeout to 5 seconds
+     *
+     * @throws SocketException if the socket could not be opened, or if there was an
+     *                         error with the underlying protocol
+     */
+    public UDPTransport() throws SocketException {
+        socket = new DatagramSocket();
+        socket.setSoTimeout(5000);
+    }
+
+    @Override
+    public void send(byte[] message, int length, InetAddress server) throws IOException {
+        systemCalls++;
+        socket.send(new DatagramPacket(message, length, server, DEFAULT_DNS_PORT));
+    }
+
+    @Override
+    public int receive(byte[] buffer) throws IOException {
+        DatagramPacket responsePacket = new DatagramPacket(buffer, buffer.length);
+        systemCalls++;
+        socket.receive(responsePacket);
+        return responsePacket.getLength();
+    }
+
+    @Override
+    public long getSystemCallCount() {
+        return systemCalls;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
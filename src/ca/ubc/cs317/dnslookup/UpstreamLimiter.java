@@ -0,0 +1,147 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** Limits the load sent to upstream DNS servers. Each server has a token bucket that bounds the
+ * rate at which packets are sent to it, and a cap on the number of queries waiting for a response
+ * from it; a global cap bounds the number of outstanding queries across all servers. Callers that
+ * exceed a limit wait in line (in arrival order) instead of failing, so a busy server slows down
+ * only the queries sent to it.
+ */
+public class UpstreamLimiter {
+
+    private static final int DEFAULT_BURST = 20;
+    private static final int DEFAULT_MAX_OUTSTANDING_PER_SERVER = 16;
+    private static final int DEFAULT_MAX_OUTSTANDING = 256;
+
+    private final double packetsPerSecond;
+    private final int burst;
+    private final int maxOutstandingPerServer;
+    private final Semaphore globalOutstanding;
+    private final Map<InetAddress, Upstream> upstreams = new ConcurrentHashMap<>();
+
+    /** State kept for each upstream server. */
+    private class Upstream {
+        private final Semaphore outstanding = new Semaphore(maxOutstandingPerServer, true);
+        private double tokens = burst;
+        private long lastRefill = System.nanoTime();
+
+        /** Takes tokens from the bucket, possibly leaving it in debt, and returns how long the
+         * caller must wait before sending so that the rate is respected.
+         */
+        private synchronized long reserve(int packets) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * packetsPerSecond / 1e9);
+            lastRefill = now;
+            tokens -= packets;
+            return tokens >= 0 ? 0 : (long) (-tokens / packetsPerSecond * 1e9);
+        }
+    }
+
+    /**
+     * @param packetsPerSecond        Sustained rate of packets that can be sent to each server.
+     * @param burst                   Number of packets that can be sent to a server at once after
+     *                                it has been idle.
+     * @param maxOutstandingPerServer Maximum number of queries waiting for a response from each
+     *                                server.
+     * @param maxOutstanding          Maximum number of queries waiting for a response overall.
+     * @throws IllegalArgumentException if packetsPerSecond is not positive, since no packet could
+     *                                  ever be sent
+     */
+    public UpstreamLimiter(double packetsPerSecond, int burst, int maxOutstandingPerServer, int maxOutstanding) {
+        if (!(packetsPerSecond > 0))
+            throw new IllegalArgumentException("Packet rate must be positive");
+        this.packetsPerSecond = packetsPerSecond;
+        this.burst = burst;
+        this.maxOutstandingPerServer = maxOutstandingPerServer;
+        this.globalOutstanding = new Semaphore(maxOutstanding, true);
+    }
+
+    /**
+     * Creates a limiter with the default burst (20 packets) and caps on outstanding queries (16
+     * per server, 256 overall).
+     *
+     * @param packetsPerSecond Sustained rate of packets that can be sent to each server.
+     * @throws IllegalArgumentException if packetsPerSecond is not positive
+     */
+    public UpstreamLimiter(double packetsPerSecond) {
+        this(packetsPerSecond, DEFAULT_BURST, DEFAULT_MAX_OUTSTANDING_PER_SERVER, DEFAULT_MAX_OUTSTANDING);
+    }
+
+    /** Returns a limiter that never makes callers wait, e.g., to benchmark the resolver against
+     * a local server or a replayed corpus.
+     *
+     * @return A limiter with no rate limit and caps that cannot be reached.
+     */
+    public static UpstreamLimiter unlimited() {
+        return new UpstreamLimiter(Double.POSITIVE_INFINITY, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    public int getMaxOutstandingPerServer() {
+        return maxOutstandingPerServer;
+    }
+
+    /** Waits until a number of queries can be sent to a server, and counts them as outstanding
+     * until they are released. The slots of the server are taken before the global ones, so
+     * queries waiting for a busy server do not hold slots that other servers could use. Either
+     * all the slots are taken, or none is (if the wait is interrupted). No tokens are taken: each
+     * transmission of the queries must wait for its own through awaitTokens.
+     *
+     * @param server  Address of the server the queries are sent to.
+     * @param queries Number of queries, at most getMaxOutstandingPerServer().
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(InetAddress server, int queries) throws InterruptedIOException {
+        if (queries > maxOutstandingPerServer)
+            throw new IllegalArgumentException("At most " + maxOutstandingPerServer + " queries per server");
+        Upstream upstream = upstreams.computeIfAbsent(server, address -> new Upstream());
+        try {
+            upstream.outstanding.acquire(queries);
+            try {
+                globalOutstanding.acquire(queries);
+            } catch (InterruptedException e) {
+                upstream.outstanding.release(queries);
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + server.getHostAddress());
+        }
+    }
+
+    /** Waits until a number of packets can be sent to a server without exceeding its rate. This
+     * is called before every transmission of queries that are outstanding, including the first.
+     *
+     * @param server  Address of the server the packets are sent to.
+     * @param packets Number of packets to be sent.
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void awaitTokens(InetAddress server, int packets) throws InterruptedIOException {
+        if (packetsPerSecond == Double.POSITIVE_INFINITY) return;
+        long delay = upstreams.computeIfAbsent(server, address -> new Upstream()).reserve(packets);
+        if (delay <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + server.getHostAddress());
+        }
+    }
+
+    /** Marks queries sent to a server as no longer outstanding, i.e., answered or abandoned.
+     *
+     * @param server  Address of the server the queries were sent to.
+     * @param queries Number of queries, as passed to acquire.
+     */
+    public void release(InetAddress server, int queries) {
+        Upstream upstream = upstreams.get(server);
+        if (upstream != null)
+            upstream.outstanding.release(queries);
+        globalOutstanding.release(queries);
+    }
+}
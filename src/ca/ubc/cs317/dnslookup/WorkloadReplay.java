@@ -0,0 +1,230 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** Replays a stream of lookup commands against the resolver and reports its throughput and
+ * latency. The stream is either read from a query log (one command per line, in the same format
+ * accepted by DNSLookupService; commands other than lookup are ignored), or generated from a list
+ * of names, with names picked following a Zipf distribution so that a few names are requested
+ * much more often than the rest. Responses can be recorded into a corpus, or served from a corpus
+ * recorded earlier, so the same workload can be replayed without a network. Lookups are sent as
+ * fast as possible, or at a fixed rate; in the latter case, latency is measured from the time each
+ * lookup was scheduled to start, so a slow lookup also counts against the lookups delayed behind
+ * it. Queries to upstream servers are not rate-limited unless a limit is given with -limit.
+ */
+public class WorkloadReplay {
+
+    private static final long SEED = 317;
+
+    /** A single lookup of the workload: a host name and the record types requested for it. */
+    private static class Lookup {
+        private final DomainName name;
+        private final List<RecordType> types;
+
+        private Lookup(DomainName name, List<RecordType> types) {
+            this.name = name;
+            this.types = types;
+        }
+    }
+
+    /**
+     * Main function, called when the replay is invoked.
+     *
+     * @param args list of arguments specified in the command line.
+     */
+    public static void main(String[] args) {
+        InetAddress rootServer = null;
+        List<Lookup> workload = null;
+        double rate = 0;
+        String recordFile = null;
+        String replayFile = null;
+        UpstreamLimiter limiter = UpstreamLimiter.unlimited();
+        try {
+            rootServer = InetAddress.getByName(args[0]);
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("-log"))
+                    workload = readLog(args[++i]);
+                else if (args[i].equals("-zipf")) {
+                    String namesFile = args[++i];
+                    int count = Integer.parseInt(args[++i]);
+                    double exponent = i + 1 < args.length && !args[i + 1].startsWith("-") ?
+                            Double.parseDouble(args[++i]) : 1.0;
+                    workload = generateZipf(namesFile, count, exponent);
+                } else if (args[i].equals("-rate"))
+                    rate = Double.parseDouble(args[++i]);
+                else if (args[i].equals("-limit"))
+                    limiter = new UpstreamLimiter(Double.parseDouble(args[++i]));
+                else if (args[i].equals("-record"))
+                    recordFile = args[++i];
+                else if (args[i].equals("-replay"))
+                    replayFile = args[++i];
+                else
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            if (workload == null)
+                throw new IllegalArgumentException("No workload specified");
+        } catch (UnknownHostException e) {
+            System.err.println("Invalid root server (" + e.getMessage() + ").");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Could not read workload (" + e.getMessage() + ").");
+            System.exit(1);
+        } catch (RuntimeException e) {
+            System.err.println("Invalid call (" + e.getMessage() + "). Usage:");
+            System.err.println("\tjava -cp DNSLookupService.jar ca.ubc.cs317.dnslookup.WorkloadReplay rootServer");
+            System.err.println("\t\t(-log queryLog | -zipf namesFile count [exponent]) [-rate lookupsPerSecond]");
+            System.err.println("\t\t[-limit packetsPerSecondPerServer]");
+            System.err.println("\t\t[-record corpus | -replay corpus]");
+            System.exit(1);
+        }
+
+        try {
+            DNSQueryHandler.openTransport(recordFile, replayFile);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        DNSQueryHandler.setLimiter(limiter);
+        DNSLookupService.setRootServer(rootServer);
+        run(workload, rate);
+        DNSQueryHandler.closeSocket();
+    }
+
+    /**
+     * Reads the lookup commands of a query log. Lookups of record types that are not supported
+     * are skipped, and the number of lines skipped is reported on the standard error.
+     *
+     * @param file Path of the query log.
+     * @return The list of lookups in the log, in order.
+     * @throws IOException if the log could not be read
+     */
+    private static List<Lookup> readLog(String file) throws IOException {
+        List<Lookup> workload = new ArrayList<>();
+        int skipped = 0;
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.ISO_8859_1)) {
+            String[] commandArgs = line.trim().split("#", 2)[0].trim().split(" ");
+            if (commandArgs.length < 2 || !(commandArgs[0].equalsIgnoreCase("lookup") ||
+                    commandArgs[0].equalsIgnoreCase("l")))
+                continue;
+            List<RecordType> types = new ArrayList<>();
+            try {
+                for (int i = 2; i < commandArgs.length; i++)
+                    for (String typeName : commandArgs[i].split(","))
+                        if (!typeName.isEmpty())
+                            types.add(RecordType.valueOf(typeName.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                skipped++;
+                continue;
+            }
+            if (types.isEmpty())
+                types.add(RecordType.A);
+            workload.add(new Lookup(DomainName.of(commandArgs[1]), types));
+        }
+        if (skipped > 0)
+            System.err.println("Skipped " + skipped + " lookups of unsupported record types.");
+        return workload;
+    }
+
+    /**
+     * Generates A lookups for names picked following a Zipf distribution: the name in position k
+     * of the list is picked with a probability proportional to 1 / k^exponent. The same
+     * arguments always generate the same workload.
+     *
+     * @param namesFile File with one host name per line, most popular first.
+     * @param count     Number of lookups to be generated.
+     * @param exponent  Exponent of the distribution; larger values concentrate lookups on fewer names.
+     * @return The list of generated lookups.
+     * @throws IOException if the names could not be read
+     */
+    private static List<Lookup> generateZipf(String namesFile, int count, double exponent) throws IOException {
+        List<DomainName> names = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(namesFile), StandardCharsets.ISO_8859_1))
+            if (!line.trim().isEmpty())
+                names.add(DomainName.of(line.trim()));
+        if (names.isEmpty())
+            throw new IllegalArgumentException("No names in " + namesFile);
+
+        double[] cumulative = new double[names.size()];
+        double total = 0;
+        for (int k = 0; k < cumulative.length; k++) {
+            total += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = total;
+        }
+
+        Random random = new Random(SEED);
+        List<Lookup> workload = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int k = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            if (k < 0) k = -k - 1;
+            workload.add(new Lookup(names.get(Math.min(k, names.size() - 1)),
+                    Collections.singletonList(RecordType.A)));
+        }
+        return workload;
+    }
+
+    /**
+     * Runs all lookups of a workload and prints the report on the standard output.
+     *
+     * @param workload Lookups to be run, in order.
+     * @param rate     Lookups started per second, or 0 to run them as fast as possible.
+     */
+    private static void run(List<Lookup> workload, double rate) {
+        long[] latencies = new long[workload.size()];
+        long hits = 0;
+        long queriesBefore = DNSQueryHandler.getSentQueryCount();
+        long systemCallsBefore = DNSQueryHandler.getSystemCallCount();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < workload.size(); i++) {
+            Lookup lookup = workload.get(i);
+            long scheduled = rate > 0 ? start + (long) (i * 1e9 / rate) : System.nanoTime();
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            long queriesSent = DNSQueryHandler.getSentQueryCount();
+            if (lookup.types.size() == 1)
+                DNSLookupService.resolve(new DNSNode(lookup.name, lookup.types.get(0)));
+            else
+                DNSLookupService.resolve(lookup.name, lookup.types);
+            latencies[i] = System.nanoTime() - scheduled;
+            // a lookup is a cache hit if it was answered without any upstream query
+            if (DNSQueryHandler.getSentQueryCount() == queriesSent) hits++;
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long queries = DNSQueryHandler.getSentQueryCount() - queriesBefore;
+        long systemCalls = DNSQueryHandler.getSystemCallCount() - systemCallsBefore;
+        int n = workload.size();
+        Arrays.sort(latencies);
+
+        System.out.printf("Lookups:                 %d\n", n);
+        System.out.printf("Elapsed:                 %.3f s\n", elapsed);
+        System.out.printf("Throughput:              %.1f lookups/s\n", n / elapsed);
+        System.out.printf("Cache hit ratio:         %.3f\n", n == 0 ? 0.0 : (double) hits / n);
+        System.out.printf("Upstream queries/lookup: %.3f\n", n == 0 ? 0.0 : (double) queries / n);
+        System.out.printf("Socket calls/lookup:     %.3f\n", n == 0 ? 0.0 : (double) systemCalls / n);
+        System.out.printf("Latency p50:             %.3f ms\n", percentile(latencies, 0.50));
+        System.out.printf("Latency p99:             %.3f ms\n", percentile(latencies, 0.99));
+        System.out.printf("Latency p999:            %.3f ms\n", percentile(latencies, 0.999));
+        System.out.printf("Latency max:             %.3f ms\n", n == 0 ? 0.0 : latencies[n - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sortedLatencies, double fraction) {
+        if (sortedLatencies.length == 0) return 0;
+        int index = (int) Math.ceil(fraction * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, index)] / 1e6;
+    }
+}